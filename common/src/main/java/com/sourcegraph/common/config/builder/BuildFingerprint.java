@@ -0,0 +1,62 @@
+package com.sourcegraph.common.config.builder;
+
+import com.sourcegraph.common.model.IndexProfile;
+import org.springframework.util.DigestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Computes fingerprint of everything builders take into account: build descriptors, wrappers and build scripts
+ * (by content), local jars (by size) and layout of Java sources (by path). Workspaces having the same fingerprint
+ * produce the same configuration
+ */
+public class BuildFingerprint {
+
+    private BuildFingerprint() {
+    }
+
+    /**
+     * @param root    workspace root
+     * @param profile index profile configuration is made for
+     * @return fingerprint of workspace's build files
+     * @throws IOException
+     */
+    public static String compute(Path root, IndexProfile profile) throws IOException {
+        return compute(WorkspaceInventory.scan(root), profile);
+    }
+
+    /**
+     * @param inventory workspace inventory
+     * @param profile   index profile configuration is made for
+     * @return fingerprint of workspace's build files
+     * @throws IOException
+     */
+    public static String compute(WorkspaceInventory inventory, IndexProfile profile) throws IOException {
+        // sorted by path, so that fingerprint does not depend on scan order
+        Map<String, String> entries = new TreeMap<>();
+        for (String file : inventory.getSourceFiles()) {
+            entries.put(relativize(inventory, file), "");
+        }
+        for (Map.Entry<Path, Long> jar : inventory.getJars().entrySet()) {
+            entries.put(relativize(inventory, jar.getKey().toString()), String.valueOf(jar.getValue()));
+        }
+        // build scripts (buildSrc) are taken by content whatever their type is
+        for (Path file : inventory.getBuildFiles()) {
+            entries.put(relativize(inventory, file.toString()), DigestUtils.md5DigestAsHex(Files.readAllBytes(file)));
+        }
+        StringBuilder data = new StringBuilder(profile.name());
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            data.append('\n').append(entry.getKey()).append(' ').append(entry.getValue());
+        }
+        return DigestUtils.md5DigestAsHex(data.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String relativize(WorkspaceInventory inventory, String file) {
+        return inventory.getRoot().relativize(inventory.getRoot().resolve(file)).toString().replace('\\', '/');
+    }
+}
@@ -1,10 +1,14 @@
 package com.sourcegraph.common.config.builder;
 
 import com.sourcegraph.common.model.Dependency;
+import com.sourcegraph.common.model.IndexProfile;
 import com.sourcegraph.common.model.JavacConfig;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.SystemUtils;
+import org.gradle.tooling.GradleConnectionException;
+import org.gradle.tooling.GradleConnector;
+import org.gradle.tooling.ProjectConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,12 +25,17 @@ public class GradleBuilder {
 
     private static final String TASK_CODE_RESOURCE = "/metainfo.gradle";
 
+    /**
+     * Task defined by init script that prints meta information of all projects
+     */
+    private static final String TASK_NAME = "srclibCollectMetaInformation";
+
     private static final String GRADLE_CMD_WINDOWS = "gradle.bat";
     private static final String GRADLE_CMD_OTHER = "gradle";
 
-    public static boolean prepare(Path path) {
-        LOGGER.info("Scanning for Gradle project descriptors in {}", path);
-        Collection<Path> descriptors = getDescriptors(path);
+    public static boolean prepare(Path path, IndexProfile profile, WorkspaceInventory inventory) {
+        LOGGER.info("Looking for Gradle project descriptors in {}", path);
+        Collection<Path> descriptors = getDescriptors(path, inventory);
 
         Map<String, JavacConfig> configurations = new HashMap<>();
         Map<String, Project> projectsCache = new HashMap<>();
@@ -60,6 +69,7 @@ public class GradleBuilder {
                 configuration.outputDirectory = project.outputDir;
                 configuration.dependencies = project.dependencies;
                 configuration.android = project.android;
+                configuration.profile = profile;
                 configurations.put(project.id(), configuration);
             }
 
@@ -81,10 +91,16 @@ public class GradleBuilder {
                             configuration.sources.add(item);
                         }
                     }
-                    configuration.files.addAll(project.files);
                 }
                 Project p = projectsCache.get(entry.getKey());
+                // files of dependencies are owned (and indexed) by their own projects, they are resolved through
+                // source path only
+                configuration.files.addAll(p.files);
+                if (!profile.indexesTestSources()) {
+                    configuration.files.removeIf(ScanUtil::isTestSource);
+                }
                 configuration.save(path, Paths.get(p.projectDir));
+                inventory.addFile(configuration.getFile());
             }
 
         }
@@ -133,8 +149,7 @@ public class GradleBuilder {
                 }
 
                 Path workDir = descriptor.toAbsolutePath().getParent();
-                List<String> gradleArgs = createArguments(wrapper, modifiedGradleScriptFile);
-                ProcessBuilder pb = new ProcessBuilder(gradleArgs);
+                List<String> gradleArgs = createArguments(modifiedGradleScriptFile);
 
                 if (LOGGER.isDebugEnabled()) {
                     LOGGER.debug("Running {} using working directory {}",
@@ -142,24 +157,41 @@ public class GradleBuilder {
                             workDir.normalize());
                 }
 
-                pb.directory(new File(workDir.toString()));
-                pb.redirectErrorStream(true);
+                // build runs in long-lived Gradle daemon managed by Tooling API, so that JVM startup and daemon
+                // warm-up are paid once rather than for every build file
+                GradleConnector connector = GradleConnector.newConnector().forProjectDirectory(workDir.toFile());
+                File installation = wrapper == null ? getInstallation() : null;
+                if (installation != null) {
+                    connector.useInstallation(installation);
+                }
+                ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+                ProjectConnection connection = connector.connect();
+                try {
+                    connection.newBuild().
+                            withArguments(gradleArgs).
+                            forTasks(TASK_NAME).
+                            setStandardOutput(stdout).
+                            setStandardError(stdout).
+                            run();
+                } catch (GradleConnectionException | IllegalStateException e) {
+                    LOGGER.error("Failed to process {} - gradle build failed. Output was: {}",
+                            descriptor,
+                            stdout.toString(),
+                            e);
+                    return Collections.emptyList();
+                } finally {
+                    connection.close();
+                }
+
                 BufferedReader in = null;
                 Collection<Project> results = new ArrayList<>();
                 Project project = null;
 
                 try {
-                    Process process = pb.start();
-                    in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+                    in = new BufferedReader(new StringReader(stdout.toString()));
 
                     String line;
-                    StringBuilder output = new StringBuilder();
                     while ((line = in.readLine()) != null) {
-                        if ("BUILD FAILED".equals(line)) {
-                            LOGGER.error("Failed to process {} - gradle build failed. Output was: {}", descriptor, output);
-                            results.clear();
-                            break;
-                        }
                         String meta[] = parseMeta(line);
                         if (meta == null) {
                             LOGGER.debug("gradle: {}", line);
@@ -253,7 +285,6 @@ public class GradleBuilder {
                                 break;
                             default:
                                 LOGGER.debug("gradle: {}", line);
-                                output.append(line).append(IOUtils.LINE_SEPARATOR);
                         }
                     }
                 } finally {
@@ -274,10 +305,11 @@ public class GradleBuilder {
     /**
      * Collects all Gradle build descriptors in the given path
      *
-     * @param path root path
+     * @param path      root path
+     * @param inventory workspace inventory
      * @return Gradle build descriptors in the given path
      */
-    private static Collection<Path> getDescriptors(Path path) {
+    private static Collection<Path> getDescriptors(Path path, WorkspaceInventory inventory) {
         // putting root gradle file first, it may contain references to all the subprojects
         Set<Path> gradleFiles = new LinkedHashSet<>();
         File rootGradleFile = path.resolve("build.gradle").toFile();
@@ -292,12 +324,7 @@ public class GradleBuilder {
             }
         }
 
-        try {
-            gradleFiles.addAll(ScanUtil.findMatchingFiles(path, "build.gradle"));
-        } catch (IOException ex) {
-            LOGGER.warn("Failed to scan for Gradle project descriptors", ex);
-        }
-
+        gradleFiles.addAll(inventory.getFiles("build.gradle"));
         return gradleFiles;
     }
 
@@ -349,13 +376,12 @@ public class GradleBuilder {
     }
 
     /**
-     * Assembles arguments for Gradle wrapper
+     * Assembles arguments for Gradle build
      *
-     * @param wrapper Gradle wrapper (may be null - use default one)
-     * @param script  Gradle init script
+     * @param script Gradle init script
      * @return command line arguments
      */
-    private static List<String> createArguments(Path wrapper, Path script) {
+    private static List<String> createArguments(Path script) {
         List<String> ret = new LinkedList<>();
         ret.add("-I");
         ret.add(script.toString());
@@ -365,23 +391,33 @@ public class GradleBuilder {
         // see https://discuss.gradle.org/t/gradle-thinks-2-10-is-less-than-2-2-when-resolving-plugins/13434/3
         // it blocks indexing of github.com/facebook/react-native for example
         ret.add("-Dcom.android.build.gradle.overrideVersionCheck=true");
-        ret.add("srclibCollectMetaInformation");
+        return ret;
+    }
 
-        if (SystemUtils.IS_OS_WINDOWS) {
-            if (wrapper == null) {
-                ret.add(0, GRADLE_CMD_WINDOWS);
-            } else {
-                ret.add(0, wrapper.toAbsolutePath().toString());
-            }
-        } else {
-            if (wrapper == null) {
-                ret.add(0, GRADLE_CMD_OTHER);
-            } else {
-                ret.add(0, wrapper.toAbsolutePath().toString());
-                ret.add(0, "bash");
+    /**
+     * Builds without wrapper used to run Gradle found in PATH, Tooling API falls back to its own distribution
+     * otherwise
+     *
+     * @return Gradle installation directory found in PATH or null
+     */
+    private static File getInstallation() {
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return null;
+        }
+        String command = SystemUtils.IS_OS_WINDOWS ? GRADLE_CMD_WINDOWS : GRADLE_CMD_OTHER;
+        for (String dir : path.split(File.pathSeparator)) {
+            File file = new File(dir, command);
+            if (file.isFile()) {
+                try {
+                    // GRADLE_HOME/bin/gradle, command may be a symbolic link
+                    return file.toPath().toRealPath().getParent().getParent().toFile();
+                } catch (IOException e) {
+                    LOGGER.warn("Unable to locate Gradle installation of {}", file, e);
+                }
             }
         }
-        return ret;
+        return null;
     }
 
     /**
@@ -1,12 +1,15 @@
 package com.sourcegraph.common.config.builder;
 
+import com.sourcegraph.common.model.IndexProfile;
 import com.sourcegraph.common.model.JavacConfig;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.maven.model.Dependency;
 import org.apache.maven.model.Repository;
 import org.apache.maven.model.building.*;
 import org.apache.maven.project.MavenProject;
 import org.apache.maven.repository.internal.ArtifactDescriptorUtils;
 import org.apache.maven.repository.internal.MavenRepositorySystemUtils;
+import org.eclipse.aether.DefaultRepositoryCache;
 import org.eclipse.aether.DefaultRepositorySystemSession;
 import org.eclipse.aether.RepositorySystem;
 import org.eclipse.aether.RepositorySystemSession;
@@ -21,8 +24,9 @@ import org.eclipse.aether.impl.DefaultServiceLocator;
 import org.eclipse.aether.internal.impl.DefaultRemoteRepositoryManager;
 import org.eclipse.aether.repository.LocalRepository;
 import org.eclipse.aether.repository.RemoteRepository;
-import org.eclipse.aether.resolution.DependencyRequest;
-import org.eclipse.aether.resolution.DependencyResolutionException;
+import org.eclipse.aether.resolution.ArtifactRequest;
+import org.eclipse.aether.resolution.ArtifactResolutionException;
+import org.eclipse.aether.resolution.ArtifactResult;
 import org.eclipse.aether.spi.connector.RepositoryConnectorFactory;
 import org.eclipse.aether.spi.connector.transport.TransporterFactory;
 import org.eclipse.aether.transport.file.FileTransporterFactory;
@@ -33,18 +37,37 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 public class MavenBuilder {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MavenBuilder.class);
 
+    private static final String DESCRIPTOR_FILE_NAME = "pom.xml";
+
+    /**
+     * Model builder used to produce Maven projects, it's stateless and shared by all threads
+     */
+    private static ModelBuilder modelBuilder = new DefaultModelBuilderFactory().newInstance();
+
+    /**
+     * Number of descriptors parsed concurrently
+     */
+    private static final int PARSER_THREADS = Runtime.getRuntime().availableProcessors();
+
     /**
-     * Model builder factory used to produce Maven projects
+     * Parses descriptors, shared by all concurrent configurations so that they don't multiply parser threads
      */
-    private static DefaultModelBuilderFactory modelBuilderFactory = new DefaultModelBuilderFactory();
+    private static final ExecutorService PARSER = Executors.newFixedThreadPool(PARSER_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "maven-parser");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
      * Maven repository system
@@ -56,6 +79,13 @@ public class MavenBuilder {
      */
     private static RepositorySystemSession repositorySystemSession;
 
+    /**
+     * Number of artifacts downloaded concurrently from the same repository
+     */
+    private static final int DOWNLOAD_THREADS = 8;
+
+    private static final String THREADS_PROPERTY = "aether.connector.basic.threads";
+
     static {
         // initializing repository system and session
         initRepositorySystem();
@@ -98,43 +128,88 @@ public class MavenBuilder {
      */
     private static RepositorySystemSession newRepositorySystemSession(RepositorySystem system) {
         DefaultRepositorySystemSession session = MavenRepositorySystemUtils.newSession();
+        // artifact descriptors are read once and shared by dependency graphs of all modules
+        session.setCache(new DefaultRepositoryCache());
+        session.setConfigProperty(THREADS_PROPERTY, DOWNLOAD_THREADS);
         LocalRepository localRepo =
                 new LocalRepository(org.apache.maven.repository.RepositorySystem.defaultUserLocalRepository);
         session.setLocalRepositoryManager(system.newLocalRepositoryManager(session, localRepo));
         return session;
     }
 
-    public static boolean prepare(Path path) {
-        LOGGER.info("Scanning for Maven project descriptors in {}", path);
-        Collection<Path> descriptors = getDescriptors(path);
+    public static boolean prepare(Path path, IndexProfile profile, WorkspaceInventory inventory) {
+        LOGGER.info("Looking for Maven project descriptors in {}", path);
+        Collection<Path> descriptors = inventory.getFiles(DESCRIPTOR_FILE_NAME);
         Map<String, MavenProject> idToProjectMap = new HashMap<>();
         Map<Path, MavenProject> pathToProjectMap = new HashMap<>();
         Collection<Repository> repositories = new HashSet<>();
 
+        // descriptors are parsed concurrently, parent and imported models are resolved once and shared through cache
+        Map<Path, MavenProject> parsed = new ConcurrentHashMap<>();
+        ModelCache modelCache = new MavenModelCache();
+        CompletableFuture.allOf(descriptors.stream().map(descriptor -> CompletableFuture.runAsync(() -> {
+            LOGGER.info("Parsing {}", descriptor);
+            try {
+                parsed.put(descriptor, getMavenProject(descriptor, modelCache));
+            } catch (ModelBuildingException e) {
+                LOGGER.warn("Cannot parse Maven project descriptor {}", descriptor, e);
+            }
+        }, PARSER)).toArray(CompletableFuture[]::new)).join();
+
         // makings maps of group/artifactid -> maven project and pom.xml -> maven project.
         // first one will be used to find sub-project dependencies,
         // the second one to associate pom.xml's directory with the javac config built
         for (Path descriptor : descriptors) {
-            LOGGER.info("Parsing {}", descriptor);
-            try {
-                MavenProject project = getMavenProject(descriptor);
+            MavenProject project = parsed.get(descriptor);
+            if (project != null) {
                 idToProjectMap.put(UnitUtil.id(project.getGroupId(), project.getArtifactId()), project);
                 pathToProjectMap.put(descriptor.toAbsolutePath().normalize(), project);
                 repositories.addAll(project.getRepositories());
-            } catch (ModelBuildingException e) {
-                LOGGER.warn("Cannot parse Maven project descriptor {}", path, e);
             }
         }
 
 
+        // dependency graphs of all modules are collected first, modules having the same external dependencies share
+        // graph, then artifacts of all graphs are resolved (downloaded concurrently) at once
+        List<RemoteRepository> remoteRepositories = repositories.stream().
+                map(ArtifactDescriptorUtils::toRemoteRepository).collect(Collectors.toList());
+        Map<Set<String>, DependencyNode> graphsByDependencies = new HashMap<>();
+        Map<Path, DependencyNode> graphs = new HashMap<>();
+        for (Map.Entry<Path, MavenProject> entry : pathToProjectMap.entrySet()) {
+            // will fetch external dependencies only
+            Collection<Dependency> externalDependencies = collectDependencies(entry.getValue(),
+                    idToProjectMap,
+                    pathToProjectMap).
+                    stream().
+                    filter(dep ->
+                            !idToProjectMap.containsKey(UnitUtil.id(dep.getGroupId(), dep.getArtifactId()))).
+                    collect(Collectors.toList());
+            Set<String> key = externalDependencies.stream().
+                    map(MavenBuilder::coordinates).
+                    collect(Collectors.toCollection(TreeSet::new));
+            DependencyNode graph = graphsByDependencies.computeIfAbsent(key,
+                    k -> collectDependencyGraph(externalDependencies, remoteRepositories, "jar"));
+            if (graph != null) {
+                graphs.put(entry.getKey(), graph);
+            }
+        }
+        LOGGER.info("Fetching artifacts");
+        Map<String, File> artifactFiles = resolveArtifacts(graphsByDependencies.values());
+        LOGGER.info("Fetched artifacts");
+
         for (Map.Entry<Path, MavenProject> entry : pathToProjectMap.entrySet()) {
             LOGGER.info("Processing {}", entry.getKey());
             MavenProject project = entry.getValue();
             JavacConfig configuration = new JavacConfig();
             configuration.unit = UnitUtil.id(project.getGroupId(), project.getArtifactId());
-            configuration.sources = collectSourcePath(project, idToProjectMap);
-            configuration.files = ScanUtil.getSourceFiles(project.getModel().getPomFile().getParentFile().toPath(),
-                    configuration.sources);
+            configuration.profile = profile;
+            configuration.sources = collectSourcePath(project, idToProjectMap, profile.indexesTestSources());
+            // sources of local dependencies are owned (and indexed) by their own modules, they are resolved through
+            // source path only
+            Collection<String> ownSourceRoots = new LinkedList<>();
+            collectSourceRoots(project, profile.indexesTestSources(), ownSourceRoots);
+            configuration.files = inventory.getSourceFiles(project.getModel().getPomFile().getParentFile().toPath(),
+                    ownSourceRoots);
             configuration.outputDirectory = project.getBuild().getOutputDirectory();
             Set<com.sourcegraph.common.model.Dependency> dependencies = new HashSet<>();
             List<Dependency> mavenDeps = project.getDependencies();
@@ -146,22 +221,9 @@ public class MavenBuilder {
             }
 
             configuration.dependencies = dependencies;
-            // will fetch external dependencies only
-            Collection<Dependency> externalDependencies = collectDependencies(project,
-                    idToProjectMap,
-                    pathToProjectMap).
-                    stream().
-                    filter(dep ->
-                            !idToProjectMap.containsKey(UnitUtil.id(dep.getGroupId(), dep.getArtifactId()))).
-                    collect(Collectors.toList());
-            LOGGER.info("Fetching artifacts");
-            Collection<Artifact> resolvedArtifacts = resolveDependencyArtifacts(externalDependencies,
-                    repositories,
-                    "jar");
-            LOGGER.info("Fetched artifacts");
             List<String> classPath = new LinkedList<>();
-            for (Artifact artifact : resolvedArtifacts) {
-                File file = artifact.getFile();
+            for (Artifact artifact : getArtifacts(graphs.get(entry.getKey()))) {
+                File file = artifactFiles.get(artifact.toString());
                 if (file != null) {
                     classPath.add(file.getAbsolutePath());
                     // updating unit dependencies with files after resolution
@@ -177,6 +239,7 @@ public class MavenBuilder {
             }
             configuration.classPath = classPath;
             configuration.save(path, entry.getKey().getParent());
+            inventory.addFile(configuration.getFile());
         }
 
         return !pathToProjectMap.isEmpty();
@@ -188,11 +251,14 @@ public class MavenBuilder {
      *
      * @param project        project to collect dependencies for
      * @param idToProjectMap map of group/artifactid -> maven project
+     * @param tests          include test source roots
      * @return list of source path from project and its local dependencies
      */
-    private static Collection<String> collectSourcePath(MavenProject project, Map<String, MavenProject> idToProjectMap) {
+    private static Collection<String> collectSourcePath(MavenProject project,
+                                                        Map<String, MavenProject> idToProjectMap,
+                                                        boolean tests) {
         Collection<String> ret = new LinkedList<>();
-        collectSourcePath(project, idToProjectMap, ret, new HashSet<>());
+        collectSourcePath(project, idToProjectMap, tests, ret, new HashSet<>());
         return ret;
     }
 
@@ -202,11 +268,13 @@ public class MavenBuilder {
      *
      * @param project        project to collect dependencies for
      * @param idToProjectMap map of group/artifactid -> maven project
+     * @param tests          include test source roots
      * @param ret            target set
      * @param visited        tracks visited projects to avoid loops
      */
     private static void collectSourcePath(MavenProject project,
                                           Map<String, MavenProject> idToProjectMap,
+                                          boolean tests,
                                           Collection<String> ret,
                                           Set<String> visited) {
         String id = UnitUtil.id(project.getGroupId(), project.getArtifactId());
@@ -214,13 +282,13 @@ public class MavenBuilder {
             return;
         }
         // extract project's source roots
-        collectSourceRoots(project, ret);
+        collectSourceRoots(project, tests, ret);
         for (Dependency dependency : project.getDependencies()) {
             id = UnitUtil.id(dependency.getGroupId(), dependency.getArtifactId());
             MavenProject dep = idToProjectMap.get(id);
             if (dep != null) {
                 // extract project's local dependency source roots
-                collectSourcePath(dep, idToProjectMap, ret, visited);
+                collectSourcePath(dep, idToProjectMap, tests, ret, visited);
             }
         }
     }
@@ -229,9 +297,10 @@ public class MavenBuilder {
      * Collects project's source roots
      *
      * @param project Maven project
+     * @param tests   include test source roots
      * @param ret     target collection to fill
      */
-    private static void collectSourceRoots(MavenProject project, Collection<String> ret) {
+    private static void collectSourceRoots(MavenProject project, boolean tests, Collection<String> ret) {
         Path root = project.getModel().getPomFile().getParentFile().toPath();
         for (String sourceRoot : project.getCompileSourceRoots()) {
             File f = concat(root, sourceRoot).toFile();
@@ -239,10 +308,12 @@ public class MavenBuilder {
                 ret.add(f.toString());
             }
         }
-        for (String sourceRoot : project.getTestCompileSourceRoots()) {
-            File f = concat(root, sourceRoot).toFile();
-            if (f.isDirectory()) {
-                ret.add(f.toString());
+        if (tests) {
+            for (String sourceRoot : project.getTestCompileSourceRoots()) {
+                File f = concat(root, sourceRoot).toFile();
+                if (f.isDirectory()) {
+                    ret.add(f.toString());
+                }
             }
         }
 
@@ -255,6 +326,10 @@ public class MavenBuilder {
             ret.add(f.toString());
         }
 
+        if (!tests) {
+            return;
+        }
+
         sourceRoot = project.getBuild().getTestSourceDirectory();
         if (sourceRoot == null) {
             sourceRoot = "src/test";
@@ -281,45 +356,24 @@ public class MavenBuilder {
         }
     }
 
-    /**
-     * @param path workspace root
-     * @return all pom.xml found
-     */
-    private static Collection<Path> getDescriptors(Path path) {
-        Collection<Path> descriptors = new LinkedList<>();
-        try {
-
-            Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    String name = file.getFileName().toString();
-                    if (name.equals("pom.xml")) {
-                        descriptors.add(file);
-                    }
-                    return FileVisitResult.CONTINUE;
-                }
-            });
-        } catch (IOException e) {
-            LOGGER.warn("Unable to collect Maven project descriptors", e);
-        }
-        return descriptors;
-    }
-
     /**
      * Parses Maven project
      *
      * @param descriptor pom.xml path
+     * @param modelCache cache of parent and imported models
      * @return Maven project object
      * @throws ModelBuildingException
      */
-    private static MavenProject getMavenProject(Path descriptor) throws ModelBuildingException {
+    private static MavenProject getMavenProject(Path descriptor, ModelCache modelCache)
+            throws ModelBuildingException {
         ModelBuildingRequest request = new DefaultModelBuildingRequest();
         request.setSystemProperties(System.getProperties());
         request.setPomFile(descriptor.toFile());
+        request.setModelCache(modelCache);
         request.setModelResolver(new MavenModelResolver(new DefaultRemoteRepositoryManager(),
                 repositorySystem,
                 repositorySystemSession));
-        ModelBuildingResult result = modelBuilderFactory.newInstance().build(request);
+        ModelBuildingResult result = modelBuilder.build(request);
         return new MavenProject(result.getEffectiveModel());
     }
 
@@ -361,7 +415,7 @@ public class MavenBuilder {
         ret.addAll(project.getDependencies());
 
         for (String module : project.getModules()) {
-            Path modulePomFile = Paths.get(project.getModel().getPomFile().getParent(), module, "pom.xml").
+            Path modulePomFile = Paths.get(project.getModel().getPomFile().getParent(), module, DESCRIPTOR_FILE_NAME).
                     toAbsolutePath().
                     normalize();
             MavenProject moduleProject = pathToProjectMap.get(modulePomFile);
@@ -372,18 +426,16 @@ public class MavenBuilder {
     }
 
     /**
-     * Fetches dependency artifacts
+     * Collects dependency graph (without resolving artifacts)
      *
-     * @param dependencies list of dependencies to fetch
+     * @param dependencies list of dependencies to collect graph of
      * @param repositories list of repositories to use
      * @param extension    artifact extension (jar, pom, ..)
-     * @return list of artifacts fetched
+     * @return root of dependency graph or null if nothing was collected
      */
-    private static Collection<Artifact> resolveDependencyArtifacts(Collection<Dependency> dependencies,
-                                                                   Collection<Repository> repositories,
-                                                                   String extension) {
-
-        Collection<Artifact> ret = new LinkedList<>();
+    private static DependencyNode collectDependencyGraph(Collection<Dependency> dependencies,
+                                                         List<RemoteRepository> repositories,
+                                                         String extension) {
 
         List<org.eclipse.aether.graph.Dependency> deps = new LinkedList<>();
         ArtifactTypeRegistry artifactTypeRegistry = repositorySystemSession.getArtifactTypeRegistry();
@@ -398,9 +450,7 @@ public class MavenBuilder {
         }
         CollectRequest collectRequest = new CollectRequest();
         collectRequest.setDependencies(deps);
-        List<RemoteRepository> repoz = repositories.stream().
-                map(ArtifactDescriptorUtils::toRemoteRepository).collect(Collectors.toList());
-        collectRequest.setRepositories(repoz);
+        collectRequest.setRepositories(repositories);
 
         DependencyNode node;
         try {
@@ -413,23 +463,76 @@ public class MavenBuilder {
         LOGGER.debug("Collected dependencies");
         if (node == null) {
             LOGGER.warn("Failed to collect dependencies - no dependencies were collected");
-            return ret;
         }
+        return node;
+    }
 
-        DependencyRequest projectDependencyRequest = new DependencyRequest(node, null);
-        try {
-            repositorySystem.resolveDependencies(repositorySystemSession, projectDependencyRequest);
-        } catch (DependencyResolutionException e) {
-            LOGGER.warn("Failed to resolve dependencies - {}", e.getMessage());
+    /**
+     * @param graph dependency graph, may be null
+     * @return artifacts of all graph nodes
+     */
+    private static Collection<Artifact> getArtifacts(DependencyNode graph) {
+        if (graph == null) {
+            return Collections.emptyList();
         }
-
         PreorderNodeListGenerator nlg = new PreorderNodeListGenerator();
-        node.accept(nlg);
+        graph.accept(nlg);
+        return nlg.getDependencies(true).stream().map(org.eclipse.aether.graph.Dependency::getArtifact).
+                collect(Collectors.toList());
+    }
+
+    /**
+     * Fetches artifacts of all the given graphs in a single request, each distinct artifact is resolved once and
+     * artifacts are downloaded concurrently
+     *
+     * @param graphs dependency graphs
+     * @return artifact (as string) -> artifact file, only resolved artifacts are included
+     */
+    private static Map<String, File> resolveArtifacts(Collection<DependencyNode> graphs) {
+        Map<String, ArtifactRequest> requests = new LinkedHashMap<>();
+        for (DependencyNode graph : graphs) {
+            if (graph == null) {
+                continue;
+            }
+            PreorderNodeListGenerator nlg = new PreorderNodeListGenerator();
+            graph.accept(nlg);
+            for (DependencyNode node : nlg.getNodes()) {
+                if (node.getDependency() != null) {
+                    requests.putIfAbsent(node.getArtifact().toString(), new ArtifactRequest(node));
+                }
+            }
+        }
 
-        ret.addAll(nlg.getDependencies(true).stream().map(org.eclipse.aether.graph.Dependency::getArtifact).
-                collect(Collectors.toList()));
+        Collection<ArtifactResult> results;
+        try {
+            results = repositorySystem.resolveArtifacts(repositorySystemSession, requests.values());
+        } catch (ArtifactResolutionException e) {
+            LOGGER.warn("Failed to resolve dependencies - {}", e.getMessage());
+            results = e.getResults();
+        }
 
+        Map<String, File> ret = new HashMap<>();
+        for (ArtifactResult result : results) {
+            if (result.isResolved()) {
+                ret.put(result.getRequest().getArtifact().toString(), result.getArtifact().getFile());
+            }
+        }
         return ret;
     }
 
+    /**
+     * @param dependency Maven dependency
+     * @return dependency coordinates including scope
+     */
+    private static String coordinates(Dependency dependency) {
+        return StringUtils.join(new Object[]{
+                dependency.getGroupId(),
+                dependency.getArtifactId(),
+                dependency.getType(),
+                dependency.getClassifier(),
+                dependency.getVersion(),
+                dependency.getScope(),
+                dependency.isOptional()}, ':');
+    }
+
 }
\ No newline at end of file
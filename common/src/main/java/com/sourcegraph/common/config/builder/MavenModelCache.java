@@ -0,0 +1,29 @@
+package com.sourcegraph.common.config.builder;
+
+import org.apache.maven.model.building.ModelCache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread-safe cache of resolved parent and imported Maven models keyed by GAV, shared by all descriptors of
+ * workspace so that common parents and BOMs are resolved once. Model builder stores copies of models here
+ */
+class MavenModelCache implements ModelCache {
+
+    private Map<String, Object> models = new ConcurrentHashMap<>();
+
+    @Override
+    public void put(String groupId, String artifactId, String version, String tag, Object data) {
+        models.put(key(groupId, artifactId, version, tag), data);
+    }
+
+    @Override
+    public Object get(String groupId, String artifactId, String version, String tag) {
+        return models.get(key(groupId, artifactId, version, tag));
+    }
+
+    private static String key(String groupId, String artifactId, String version, String tag) {
+        return groupId + ':' + artifactId + ':' + version + ':' + tag;
+    }
+}
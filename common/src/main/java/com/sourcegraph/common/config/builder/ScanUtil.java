@@ -21,42 +21,13 @@ public class ScanUtil {
     }
 
     /**
-     * Retrieves all matching files in the given root
-     * @param root root directory
-     * @param fileName file name to match against
-     * @return found files
-     * @throws IOException
+     * @param path file or directory path
+     * @return true if path looks like a test source (belongs to src/test or src/androidTest)
      */
-    public static Collection<Path> findMatchingFiles(Path root, String fileName) throws IOException {
-        Collection<Path> result = new HashSet<>();
-
-        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                String name = file.getFileName().toString();
-                if (fileName.equals(name)) {
-                    result.add(file.toAbsolutePath().normalize());
-                }
-                return FileVisitResult.CONTINUE;
-            }
-
-            @Override
-            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                // Skip common build data directories and dot-directories.
-                String dirName = dir.getFileName().normalize().toString();
-                if (dirName.equals("build") || dirName.equals("target") || dirName.startsWith(".")) {
-                    return FileVisitResult.SKIP_SUBTREE;
-                }
-                return FileVisitResult.CONTINUE;
-            }
-
-            @Override
-            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
-                return FileVisitResult.CONTINUE;
-            }
-        });
-
-        return result;
+    static boolean isTestSource(String path) {
+        String normalized = path.replace('\\', '/');
+        return normalized.contains("/src/test/") || normalized.endsWith("/src/test") ||
+                normalized.contains("/src/androidTest/") || normalized.endsWith("/src/androidTest");
     }
 
     /**
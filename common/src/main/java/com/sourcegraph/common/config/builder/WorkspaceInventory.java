@@ -0,0 +1,308 @@
+package com.sourcegraph.common.config.builder;
+
+import com.sourcegraph.common.model.JavacConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory inventory of workspace made by single parallel (fork/join) scan: build files (descriptors, wrappers,
+ * build scripts), local jars, "java" directories and Java source files. Fingerprint and all builders take what they
+ * need from inventory, so that workspace's file tree is walked once per configuration. Build output directories
+ * (build, target) outside of "java" directories and dot-directories are not scanned
+ */
+public class WorkspaceInventory {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WorkspaceInventory.class);
+
+    private static final Collection<String> NAMES = Arrays.asList(
+            "pom.xml",
+            "gradlew",
+            "gradlew.bat",
+            "gradle.properties",
+            "gradle-wrapper.properties",
+            "AndroidManifest.xml");
+
+    private static final Collection<String> SUFFIXES = Arrays.asList(
+            ".gradle",
+            ".gradle.kts");
+
+    private static final String BUILD_SRC = "buildSrc";
+
+    private static final String SOURCE_DIR = "java";
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private Path root;
+
+    /**
+     * Build files and everything located in buildSrc directories
+     */
+    private Set<Path> buildFiles = new ConcurrentSkipListSet<>();
+
+    /**
+     * jar -> size
+     */
+    private Map<Path, Long> jars = new ConcurrentHashMap<>();
+
+    /**
+     * Unit configurations, found by scan or written by builders
+     */
+    private Set<Path> configFiles = new ConcurrentSkipListSet<>();
+
+    private Set<String> sourceDirs = new ConcurrentSkipListSet<>();
+
+    /**
+     * Build output directories that weren't scanned, sorted, so that source roots containing them (and thus packages
+     * named "build" or "target") can be looked up by prefix and walked on demand
+     */
+    private NavigableSet<String> skippedDirs = new ConcurrentSkipListSet<>();
+
+    /**
+     * Sorted, so that files of directory can be looked up by prefix
+     */
+    private NavigableSet<String> sourceFiles = new ConcurrentSkipListSet<>();
+
+    private WorkspaceInventory(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Scans workspace, unreadable directories are skipped
+     *
+     * @param root workspace root
+     * @return workspace inventory
+     */
+    public static WorkspaceInventory scan(Path root) {
+        WorkspaceInventory ret = new WorkspaceInventory(root.toAbsolutePath().normalize());
+        long start = System.currentTimeMillis();
+        POOL.invoke(ret.new ScanTask(ret.root, false, false));
+        LOGGER.debug("Scanned {} in {} ms, found {} build file(s) and {} Java file(s)",
+                ret.root,
+                System.currentTimeMillis() - start,
+                ret.buildFiles.size(),
+                ret.sourceFiles.size());
+        return ret;
+    }
+
+    /**
+     * @return workspace root (absolute)
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * @return build files (absolute), sorted
+     */
+    public Collection<Path> getBuildFiles() {
+        return Collections.unmodifiableSet(buildFiles);
+    }
+
+    /**
+     * @return unit configuration files (absolute), sorted
+     */
+    public Collection<Path> getConfigFiles() {
+        return Collections.unmodifiableSet(configFiles);
+    }
+
+    /**
+     * @param fileName file name to match against
+     * @return build files (absolute) having the given name, sorted
+     */
+    public Collection<Path> getFiles(String fileName) {
+        return buildFiles.stream().
+                filter(file -> file.getFileName().toString().equals(fileName)).
+                collect(Collectors.toList());
+    }
+
+    /**
+     * @return jar (absolute) -> size
+     */
+    public Map<Path, Long> getJars() {
+        return Collections.unmodifiableMap(jars);
+    }
+
+    /**
+     * @return all "java" directories (absolute)
+     */
+    public Set<String> getSourceDirs() {
+        return new HashSet<>(sourceDirs);
+    }
+
+    /**
+     * @return all Java files (absolute), sorted
+     */
+    public Collection<String> getSourceFiles() {
+        return Collections.unmodifiableSet(sourceFiles);
+    }
+
+    /**
+     * @param path        base directory
+     * @param directories source directories, relative to base directory or absolute
+     * @return all Java files found in the given directories
+     */
+    public Set<String> getSourceFiles(Path path, Collection<String> directories) {
+        Set<String> ret = new HashSet<>();
+        for (String directory : directories) {
+            Path dir = path.resolve(directory).toAbsolutePath().normalize();
+            String prefix = dir.toString();
+            if (!prefix.endsWith(File.separator)) {
+                prefix += File.separator;
+            }
+            String skipped = skippedDirs.ceiling(prefix);
+            if (!isScanned(dir) || (skipped != null && skipped.startsWith(prefix))) {
+                // source roots located in or containing build output directories (generated sources, packages
+                // named "build")
+                ret.addAll(ScanUtil.getSourceFiles(path, Collections.singleton(directory)));
+                continue;
+            }
+            for (String file : sourceFiles.tailSet(prefix)) {
+                if (!file.startsWith(prefix)) {
+                    break;
+                }
+                ret.add(file);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Registers file created after scan (for example, unit configuration written by builder)
+     *
+     * @param file file to register
+     */
+    public void addFile(Path file) {
+        Path normalized = file.toAbsolutePath().normalize();
+        if (isScanned(normalized.getParent())) {
+            visitFile(normalized, normalized.getFileName().toString(), 0L, false);
+        }
+    }
+
+    /**
+     * @param dir absolute normalized directory
+     * @return true if directory's content is covered by scan
+     */
+    private boolean isScanned(Path dir) {
+        if (!dir.startsWith(root)) {
+            return false;
+        }
+        boolean inSources = false;
+        for (Path name : root.relativize(dir)) {
+            if (isSkipped(name.toString(), inSources)) {
+                return false;
+            }
+            inSources = inSources || name.toString().equals(SOURCE_DIR);
+        }
+        return true;
+    }
+
+    private void visitFile(Path file, String name, long size, boolean inBuildSrc) {
+        if (name.equals(JavacConfig.CONFIG_FILE_NAME)) {
+            // produced by configuration, never affects it
+            configFiles.add(file);
+            return;
+        }
+        if (name.endsWith(".java")) {
+            sourceFiles.add(file.toString());
+        } else if (name.endsWith(".jar")) {
+            jars.put(file, size);
+        }
+        if (inBuildSrc || isBuildFile(name)) {
+            buildFiles.add(file);
+        }
+    }
+
+    /**
+     * @param dirName   directory name
+     * @param inSources true if directory is located in "java" directory, where "build" and "target" are packages
+     * @return true for common build data directories and dot-directories
+     */
+    private static boolean isSkipped(String dirName, boolean inSources) {
+        return dirName.startsWith(".") || !inSources && isBuildOutput(dirName);
+    }
+
+    private static boolean isBuildOutput(String dirName) {
+        return dirName.equals("build") || dirName.equals("target");
+    }
+
+    /**
+     * @param name file name
+     * @return true if file is Maven or Gradle descriptor, Gradle wrapper or build script
+     */
+    public static boolean isBuildFile(String name) {
+        if (NAMES.contains(name)) {
+            return true;
+        }
+        for (String suffix : SUFFIXES) {
+            if (name.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Scans single directory, subdirectories are scanned by forked tasks
+     */
+    private class ScanTask extends RecursiveAction {
+
+        private Path dir;
+        private boolean inBuildSrc;
+        private boolean inSources;
+
+        ScanTask(Path dir, boolean inBuildSrc, boolean inSources) {
+            this.dir = dir;
+            this.inBuildSrc = inBuildSrc;
+            this.inSources = inSources;
+        }
+
+        @Override
+        protected void compute() {
+            Collection<ScanTask> subtasks = new LinkedList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path child : stream) {
+                    String name = child.getFileName().toString();
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        continue;
+                    }
+                    if (!attrs.isDirectory()) {
+                        visitFile(child, name, attrs.size(), inBuildSrc);
+                        continue;
+                    }
+                    if (isSkipped(name, inSources)) {
+                        if (isBuildOutput(name)) {
+                            skippedDirs.add(child.toString());
+                        }
+                        continue;
+                    }
+                    if (name.equals(SOURCE_DIR)) {
+                        sourceDirs.add(child.toString());
+                    }
+                    subtasks.add(new ScanTask(child,
+                            inBuildSrc || name.equals(BUILD_SRC),
+                            inSources || name.equals(SOURCE_DIR)));
+                }
+            } catch (IOException e) {
+                LOGGER.debug("Unable to scan {}", dir, e);
+            }
+            invokeAll(subtasks);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.sourcegraph.common.configuration;
 
+import com.sourcegraph.common.util.PriorityExecutorService;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -9,19 +10,75 @@ import java.util.concurrent.*;
 @Configuration
 public class TaskExecutorConfiguration {
 
-    @Value("${tasks.pool.core.size:50}")
-    private int corePoolSize;
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
 
-    @Value("${tasks.pool.max.size:100}")
-    private int maxPoolSize;
+    /**
+     * Number of threads to clone and configure repositories, 0 means twice the number of cores (work is I/O-bound)
+     */
+    @Value("${tasks.clone.pool.size:0}")
+    private int clonePoolSize;
 
+    /**
+     * Number of threads to build indexes, 0 means number of cores (work is CPU-bound)
+     */
+    @Value("${tasks.index.pool.size:0}")
+    private int indexPoolSize;
+
+    /**
+     * Number of threads to run queries against indexes, 0 means number of cores
+     */
+    @Value("${tasks.query.pool.size:0}")
+    private int queryPoolSize;
+
+    /**
+     * @return executor for I/O-bound tasks: cloning repositories, resolving dependencies and running build tools
+     */
     @Bean
-    public ExecutorService taskExecutor() {
-        return new ThreadPoolExecutor(corePoolSize,
-                maxPoolSize,
-                Integer.MAX_VALUE,
-                TimeUnit.SECONDS,
+    public ExecutorService cloneExecutor() {
+        int size = clonePoolSize > 0 ? clonePoolSize : CORES * 2;
+        return new ThreadPoolExecutor(size,
+                size,
+                0L,
+                TimeUnit.MILLISECONDS,
                 new LinkedBlockingQueue<>());
     }
 
+    /**
+     * @return executor for CPU-bound tasks: compiling and indexing sources, interactive requests are served first
+     */
+    @Bean
+    public PriorityExecutorService indexExecutor() {
+        return new PriorityExecutorService(indexPoolSize > 0 ? indexPoolSize : CORES);
+    }
+
+    /**
+     * @return executor for latency-sensitive tasks: looking up symbols in built indexes
+     */
+    @Bean
+    public ExecutorService queryExecutor() {
+        int size = queryPoolSize > 0 ? queryPoolSize : CORES;
+        return new ThreadPoolExecutor(size,
+                size,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>());
+    }
+
+    /**
+     * @return executor for delayed tasks (timeouts), scheduled tasks are supposed to be short
+     */
+    @Bean
+    public ScheduledExecutorService scheduledExecutor() {
+        return Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * @return executor for progress notifications, they compute workspace status and write to subscribers'
+     * connections, so they may block for a while
+     */
+    @Bean
+    public ScheduledExecutorService notifyExecutor() {
+        return Executors.newSingleThreadScheduledExecutor();
+    }
+
 }
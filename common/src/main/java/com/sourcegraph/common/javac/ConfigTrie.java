@@ -0,0 +1,66 @@
+package com.sourcegraph.common.javac;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Resolves directories to configuration files covering them (configuration located in the directory itself or in the
+ * nearest parent) using path-prefix trie. Trie is immutable once built and may be shared between threads
+ */
+class ConfigTrie {
+
+    private Node root = new Node();
+
+    /**
+     * @param configFiles absolute normalized paths of configuration files
+     */
+    ConfigTrie(Collection<Path> configFiles) {
+        for (Path configFile : configFiles) {
+            Node node = root;
+            for (String segment : segments(configFile.getParent())) {
+                node = node.children.computeIfAbsent(segment, k -> new Node());
+            }
+            node.configFile = configFile;
+        }
+    }
+
+    /**
+     * @param dir absolute normalized directory path
+     * @return configuration file covering given directory or null
+     */
+    Path find(Path dir) {
+        Node node = root;
+        Path found = node.configFile;
+        for (String segment : segments(dir)) {
+            node = node.children.get(segment);
+            if (node == null) {
+                break;
+            }
+            if (node.configFile != null) {
+                found = node.configFile;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param dir directory path
+     * @return path segments starting with filesystem root
+     */
+    private static Collection<String> segments(Path dir) {
+        Collection<String> ret = new ArrayList<>(dir.getNameCount() + 1);
+        ret.add(String.valueOf(dir.getRoot()));
+        for (Path name : dir) {
+            ret.add(name.toString());
+        }
+        return ret;
+    }
+
+    private static class Node {
+        Map<String, Node> children = new HashMap<>();
+        Path configFile;
+    }
+}
@@ -0,0 +1,18 @@
+package com.sourcegraph.common.javac;
+
+/**
+ * Order in which workspace units are submitted for indexing
+ */
+public enum IndexOrder {
+
+    /**
+     * Smallest units (by number of source files) first, so that most of the units become available sooner
+     */
+    SIZE,
+
+    /**
+     * Most recently queried units first, never queried ones follow ordered by size
+     */
+    ACCESS
+
+}
@@ -3,6 +3,8 @@ package com.sourcegraph.common.javac;
 import com.sourcegraph.common.model.JavacConfig;
 import com.sun.source.tree.CompilationUnitTree;
 import com.sun.source.util.JavacTask;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
 import com.sun.source.util.Trees;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -14,6 +16,8 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
 import java.util.stream.Collectors;
 
 /**
@@ -53,10 +57,13 @@ public class JavacHolder {
     /**
      * Compiles all the given sources, produces trees object
      * @param sources sources to compile
+     * @param cancelled checked on every compilation event (per file and phase), compilation is aborted with
+     *                  {@link CancellationException} once it returns true
      * @return AST trees
      * @throws IOException
      */
-    public Iterable<? extends CompilationUnitTree> compile(Iterable<? extends JavaFileObject> sources)
+    public Iterable<? extends CompilationUnitTree> compile(Iterable<? extends JavaFileObject> sources,
+                                                           BooleanSupplier cancelled)
             throws IOException {
         JavacTask task = (JavacTask) compiler.getTask(null,
                 fileManager,
@@ -66,6 +73,23 @@ public class JavacHolder {
                 javacOpts,
                 null,
                 sources);
+        task.addTaskListener(new TaskListener() {
+            @Override
+            public void started(TaskEvent e) {
+                checkCancelled();
+            }
+
+            @Override
+            public void finished(TaskEvent e) {
+                checkCancelled();
+            }
+
+            private void checkCancelled() {
+                if (cancelled.getAsBoolean()) {
+                    throw new CancellationException();
+                }
+            }
+        });
         Iterable<? extends CompilationUnitTree> units = task.parse();
         task.analyze();
         this.trees = Trees.instance(task);
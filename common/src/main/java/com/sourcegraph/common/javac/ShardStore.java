@@ -0,0 +1,245 @@
+package com.sourcegraph.common.javac;
+
+import com.sourcegraph.common.model.Dependency;
+import com.sourcegraph.common.model.JavacConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Node-wide content-addressed store of unit index shards. Shard is the index of a whole unit and is keyed by unit
+ * fingerprint (see {@link com.sourcegraph.common.model.JavacConfig#fingerprint(Path)}) and unit content (see
+ * {@link #contentId(Path, JavacConfig)}), so that the same unit of different commits, branches and forks is indexed
+ * once. Records of a file may refer to any file on unit's source path, that's why unit is the smallest piece of index
+ * that can be shared. Shards and unit indexes are hard links to the same file where file system permits
+ */
+public class ShardStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardStore.class);
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Shard's access time (mtime) is updated no more often than once per this number of milliseconds
+     */
+    private static final long ACCESS_RESOLUTION = 60 * 60 * 1000L;
+
+    private Path root;
+
+    /**
+     * @param root directory to keep shards in
+     */
+    public ShardStore(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * @param fingerprint unit fingerprint
+     * @param contentId   unit content ID
+     * @return shard file, may not exist
+     */
+    public Path getShard(String fingerprint, String contentId) {
+        return root.resolve(fingerprint).resolve(contentId.substring(0, 2)).resolve(contentId.substring(2));
+    }
+
+    /**
+     * @param fingerprint unit fingerprint
+     * @param contentId   unit content ID
+     * @return shard file or null if there is no such shard, shard is marked as accessed
+     */
+    public Path find(String fingerprint, String contentId) {
+        Path shard = getShard(fingerprint, contentId);
+        try {
+            long now = System.currentTimeMillis();
+            if (Files.getLastModifiedTime(shard).toMillis() < now - ACCESS_RESOLUTION) {
+                Files.setLastModifiedTime(shard, FileTime.fromMillis(now));
+            }
+            return shard;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            LOGGER.warn("Cannot access shard {}", shard, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores unit index as shard, concurrent writers of the same shard don't interfere since content is the same
+     *
+     * @param fingerprint unit fingerprint
+     * @param contentId   unit content ID
+     * @param index       unit index file
+     */
+    public void put(String fingerprint, String contentId, Path index) {
+        Path shard = getShard(fingerprint, contentId);
+        try {
+            Files.createDirectories(shard.getParent());
+            link(index, shard);
+        } catch (FileAlreadyExistsException e) {
+            // stored by concurrent build
+        } catch (IOException e) {
+            LOGGER.warn("Cannot store shard {}", shard, e);
+        }
+    }
+
+    /**
+     * Makes file available under the new name, by means of hard link or, if links are not supported, atomic copy
+     *
+     * @param source existing file
+     * @param target file to create
+     * @throws FileAlreadyExistsException if target file exists
+     * @throws IOException                if there was an I/O error
+     */
+    public static void link(Path source, Path target) throws IOException {
+        try {
+            Files.createLink(target, source);
+            return;
+        } catch (FileAlreadyExistsException | NoSuchFileException e) {
+            throw e;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            // different file stores or no hard links there
+        }
+        Path tmp = Files.createTempFile(target.getParent(), "shard", "tmp");
+        try {
+            Files.copy(source, tmp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Removes shards that weren't accessed for a while
+     *
+     * @param maxAge maximum idle time of shard (milliseconds)
+     * @return number of removed shards
+     * @throws IOException if there was an I/O error
+     */
+    public int prune(long maxAge) throws IOException {
+        if (!Files.isDirectory(root)) {
+            return 0;
+        }
+        long threshold = System.currentTimeMillis() - maxAge;
+        int[] ret = {0};
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.lastModifiedTime().toMillis() < threshold) {
+                    Files.deleteIfExists(file);
+                    ret[0]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return ret[0];
+    }
+
+    /**
+     * Computes unit content ID, a hash of unit's files, source path (all Java files of source roots), class path files
+     * located inside workspace (jars checked into repository) and dependency coordinates. Files are identified by path
+     * relative to workspace root and git blob ID
+     *
+     * @param workspaceRoot workspace root
+     * @param config        unit configuration
+     * @return unit content ID
+     * @throws IOException if there was an I/O error
+     */
+    public static String contentId(Path workspaceRoot, JavacConfig config) throws IOException {
+        Path root = workspaceRoot.toAbsolutePath().normalize();
+        Map<String, String> files = new TreeMap<>();
+        if (config.files != null) {
+            for (String file : config.files) {
+                addFile(root, Paths.get(file), files);
+            }
+        }
+        if (config.sources != null) {
+            for (String source : config.sources) {
+                Path dir = Paths.get(source);
+                if (!Files.isDirectory(dir)) {
+                    continue;
+                }
+                try (Stream<Path> stream = Files.walk(dir)) {
+                    for (Path file : (Iterable<Path>) stream::iterator) {
+                        if (file.toString().endsWith(".java") && Files.isRegularFile(file)) {
+                            addFile(root, file, files);
+                        }
+                    }
+                }
+            }
+        }
+        if (config.classPath != null) {
+            for (String entry : config.classPath) {
+                Path file = Paths.get(entry).toAbsolutePath().normalize();
+                if (file.startsWith(root) && Files.isRegularFile(file)) {
+                    addFile(root, file, files);
+                }
+            }
+        }
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            content.append(file.getKey()).append('\0').append(file.getValue()).append('\n');
+        }
+        if (config.dependencies != null) {
+            for (Dependency dependency : config.dependencies) {
+                content.append(dependency.groupID).append(':').
+                        append(dependency.artifactID).append(':').
+                        append(dependency.version).append('\0').
+                        append(dependency.file == null ? null : relativize(root, Paths.get(dependency.file))).
+                        append('\n');
+            }
+        }
+        return sha1(content.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param content file content
+     * @return git blob ID of content
+     */
+    public static String blobId(byte[] content) {
+        byte[] header = ("blob " + content.length + '\0').getBytes(StandardCharsets.US_ASCII);
+        byte[] blob = new byte[header.length + content.length];
+        System.arraycopy(header, 0, blob, 0, header.length);
+        System.arraycopy(content, 0, blob, header.length, content.length);
+        return sha1(blob);
+    }
+
+    private static void addFile(Path root, Path file, Map<String, String> files) throws IOException {
+        Path normalized = file.toAbsolutePath().normalize();
+        String key = relativize(root, normalized);
+        if (!files.containsKey(key)) {
+            files.put(key, blobId(Files.readAllBytes(normalized)));
+        }
+    }
+
+    /**
+     * @return path relative to workspace root if path is inside workspace, absolute path otherwise
+     */
+    private static String relativize(Path root, Path path) {
+        Path normalized = path.toAbsolutePath().normalize();
+        return normalized.startsWith(root) ? root.relativize(normalized).toString() : normalized.toString();
+    }
+
+    private static String sha1(byte[] content) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(content);
+            char[] ret = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                ret[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+                ret[i * 2 + 1] = HEX[hash[i] & 0xf];
+            }
+            return new String(ret);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
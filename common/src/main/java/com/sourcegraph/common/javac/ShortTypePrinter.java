@@ -3,136 +3,241 @@ package com.sourcegraph.common.javac;
 import com.sun.tools.javac.code.Flags;
 import com.sun.tools.javac.code.Symbol;
 import com.sun.tools.javac.code.Type;
-import org.apache.commons.lang3.StringUtils;
 
 import javax.lang.model.element.ElementKind;
 import javax.lang.model.type.*;
 import javax.lang.model.util.AbstractTypeVisitor8;
-import java.util.Collection;
-import java.util.LinkedList;
-import java.util.stream.Collectors;
-
-public class ShortTypePrinter extends AbstractTypeVisitor8<String, Void> {
-
-    private ShortTypePrinter() {
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Prints types and method signatures using simple class names.
+ * Printer instance memoizes rendered types, it's supposed to be shared by all the threads of a single index build
+ * (type objects are not reused between builds)
+ */
+public class ShortTypePrinter extends AbstractTypeVisitor8<Void, StringBuilder> {
+
+    /**
+     * type -> rendered type mapping, null if memoization is disabled
+     */
+    private Map<TypeMirror, String> cache;
+
+    public ShortTypePrinter() {
+        this(new ConcurrentHashMap<>());
+    }
 
+    private ShortTypePrinter(Map<TypeMirror, String> cache) {
+        this.cache = cache;
     }
 
     public static String print(TypeMirror type) {
-        return type.accept(new ShortTypePrinter(), null);
+        return new ShortTypePrinter(null).printType(type);
     }
 
     public static String methodSignature(Symbol.MethodSymbol e) {
-        String name = e.getSimpleName().toString();
-        boolean varargs = (e.flags() & Flags.VARARGS) != 0;
-        Collection<String> params = new LinkedList<>();
-
-        com.sun.tools.javac.util.List<Symbol.VarSymbol> parameters = e.getParameters();
-        for (int i = 0; i < parameters.size(); i++) {
-            Symbol.VarSymbol p = parameters.get(i);
-            String pName = shortName(p, varargs && i == parameters.size() - 1);
+        StringBuilder ret = new StringBuilder();
+        new ShortTypePrinter(null).appendSignature(e, ret);
+        return ret.toString();
+    }
 
-            params.add(pName);
+    /**
+     * @param type type to print
+     * @return short representation of a given type
+     */
+    public String printType(TypeMirror type) {
+        if (cache != null) {
+            String cached = cache.get(type);
+            if (cached != null) {
+                return cached;
+            }
         }
+        StringBuilder ret = new StringBuilder();
+        append(type, ret);
+        return ret.toString();
+    }
 
-        String signature = name + "(" + StringUtils.join(params, ", ") + ")";
+    /**
+     * @param method method to print
+     * @return return type followed by method signature
+     */
+    public String printMethod(Symbol.MethodSymbol method) {
+        StringBuilder ret = new StringBuilder();
+        append(method.getReturnType(), ret);
+        ret.append(' ');
+        appendSignature(method, ret);
+        return ret.toString();
+    }
 
-        if (!e.getThrownTypes().isEmpty()) {
-            Collection<String> thrown = new LinkedList<>();
+    /**
+     * Appends method signature (name, parameters and thrown types)
+     *
+     * @param e      method to print
+     * @param target target buffer
+     */
+    private void appendSignature(Symbol.MethodSymbol e, StringBuilder target) {
+        target.append(e.getSimpleName());
+        boolean varargs = (e.flags() & Flags.VARARGS) != 0;
 
-            for (Type t : e.getThrownTypes())
-                thrown.add(ShortTypePrinter.print(t));
+        target.append('(');
+        com.sun.tools.javac.util.List<Symbol.VarSymbol> parameters = e.getParameters();
+        int i = 0;
+        int last = parameters.size() - 1;
+        for (Symbol.VarSymbol p : parameters) {
+            if (i > 0) {
+                target.append(", ");
+            }
+            appendParameter(p, varargs && i == last, target);
+            i++;
+        }
+        target.append(')');
+
+        List<Type> thrown = e.getThrownTypes();
+        if (!thrown.isEmpty()) {
+            target.append(" throws ");
+            appendAll(thrown, ", ", target);
+        }
+    }
 
-            signature += " throws " + StringUtils.join(thrown, ", ") ;
+    /**
+     * Appends type, consulting cache first
+     *
+     * @param type   type to print
+     * @param target target buffer
+     */
+    private void append(TypeMirror type, StringBuilder target) {
+        if (cache == null) {
+            type.accept(this, target);
+            return;
         }
+        String cached = cache.get(type);
+        if (cached != null) {
+            target.append(cached);
+            return;
+        }
+        int start = target.length();
+        type.accept(this, target);
+        cache.put(type, target.substring(start));
+    }
 
-        return signature;
+    /**
+     * Appends types separated by given separator
+     *
+     * @param types     types to print
+     * @param separator separator to use
+     * @param target    target buffer
+     */
+    private void appendAll(List<? extends TypeMirror> types, String separator, StringBuilder target) {
+        boolean first = true;
+        for (TypeMirror type : types) {
+            if (!first) {
+                target.append(separator);
+            }
+            first = false;
+            append(type, target);
+        }
     }
 
     @Override
-    public String visitIntersection(IntersectionType t, Void aVoid) {
-        return t.getBounds().stream().map(ShortTypePrinter::print).collect(Collectors.joining(" & "));
+    public Void visitIntersection(IntersectionType t, StringBuilder target) {
+        appendAll(t.getBounds(), " & ", target);
+        return null;
     }
 
     @Override
-    public String visitUnion(UnionType t, Void aVoid) {
-        return t.getAlternatives().stream().map(ShortTypePrinter::print).collect(Collectors.joining(" | "));
+    public Void visitUnion(UnionType t, StringBuilder target) {
+        appendAll(t.getAlternatives(), " | ", target);
+        return null;
     }
 
     @Override
-    public String visitPrimitive(PrimitiveType t, Void aVoid) {
-        return t.toString();
+    public Void visitPrimitive(PrimitiveType t, StringBuilder target) {
+        target.append(t.toString());
+        return null;
     }
 
     @Override
-    public String visitNull(NullType t, Void aVoid) {
-        return t.toString();
+    public Void visitNull(NullType t, StringBuilder target) {
+        target.append(t.toString());
+        return null;
     }
 
     @Override
-    public String visitArray(ArrayType t, Void aVoid) {
-        return print(t.getComponentType()) + "[]";
+    public Void visitArray(ArrayType t, StringBuilder target) {
+        append(t.getComponentType(), target);
+        target.append("[]");
+        return null;
     }
 
     @Override
-    public String visitDeclared(DeclaredType t, Void aVoid) {
-        String result = "";
-
+    public Void visitDeclared(DeclaredType t, StringBuilder target) {
         // If type is an inner class, add outer class name
         if (t.asElement().getKind() == ElementKind.CLASS &&
-            t.getEnclosingType().getKind() == TypeKind.DECLARED) {
+                t.getEnclosingType().getKind() == TypeKind.DECLARED) {
 
-            result += print(t.getEnclosingType()) + ".";
+            append(t.getEnclosingType(), target);
+            target.append('.');
         }
 
-        result += t.asElement().getSimpleName().toString();
+        target.append(t.asElement().getSimpleName());
 
-        if (!t.getTypeArguments().isEmpty()) {
-            String params = t.getTypeArguments()
-                              .stream()
-                              .map(ShortTypePrinter::print)
-                              .collect(Collectors.joining(", "));
-
-            result += "<" + params + ">";
+        List<? extends TypeMirror> arguments = t.getTypeArguments();
+        if (!arguments.isEmpty()) {
+            target.append('<');
+            appendAll(arguments, ", ", target);
+            target.append('>');
         }
-
-        return result;
+        return null;
     }
 
     @Override
-    public String visitError(ErrorType t, Void aVoid) {
-        return "???";
+    public Void visitError(ErrorType t, StringBuilder target) {
+        target.append("???");
+        return null;
     }
 
     @Override
-    public String visitTypeVariable(TypeVariable t, Void aVoid) {
-        return t.asElement().toString();
+    public Void visitTypeVariable(TypeVariable t, StringBuilder target) {
+        target.append(t.asElement().getSimpleName());
+        return null;
     }
 
     @Override
-    public String visitWildcard(WildcardType t, Void aVoid) {
-        String result = "?";
+    public Void visitWildcard(WildcardType t, StringBuilder target) {
+        target.append('?');
 
-        if (t.getSuperBound() != null)
-            result += " super " + print(t.getSuperBound());
-
-        if (t.getExtendsBound() != null)
-            result += " extends " + print(t.getExtendsBound());
+        if (t.getSuperBound() != null) {
+            target.append(" super ");
+            append(t.getSuperBound(), target);
+        }
 
-        return result;
+        if (t.getExtendsBound() != null) {
+            target.append(" extends ");
+            append(t.getExtendsBound(), target);
+        }
+        return null;
     }
 
     @Override
-    public String visitExecutable(ExecutableType t, Void aVoid) {
-        return t.toString();
+    public Void visitExecutable(ExecutableType t, StringBuilder target) {
+        target.append(t.toString());
+        return null;
     }
 
     @Override
-    public String visitNoType(NoType t, Void aVoid) {
-        return t.toString();
+    public Void visitNoType(NoType t, StringBuilder target) {
+        target.append(t.toString());
+        return null;
     }
 
-    private static String shortName(Symbol.VarSymbol p, boolean varargs) {
+    /**
+     * Appends method parameter (type and name unless name was synthesized)
+     *
+     * @param p       parameter
+     * @param varargs true if parameter is varargs one
+     * @param target  target buffer
+     */
+    private void appendParameter(Symbol.VarSymbol p, boolean varargs, StringBuilder target) {
         Type type = p.type;
 
         if (varargs) {
@@ -141,20 +246,32 @@ public class ShortTypePrinter extends AbstractTypeVisitor8<String, Void> {
             type = array.getComponentType();
         }
 
-        String acc = shortTypeName(type);
-        String name = p.name.toString();
-
-        if (varargs)
-            acc += "...";
+        append(type, target);
 
-        if (!name.matches("arg\\d+"))
-            acc += " " + name;
+        if (varargs) {
+            target.append("...");
+        }
 
-        return acc;
+        if (!isSyntheticName(p.name)) {
+            target.append(' ').append(p.name);
+        }
     }
 
-    private static String shortTypeName(Type type) {
-        return print(type);
+    /**
+     * @param name parameter name
+     * @return true if name matches arg\d+ (names produced for parameters read from class files)
+     */
+    private static boolean isSyntheticName(CharSequence name) {
+        int length = name.length();
+        if (length < 4 || name.charAt(0) != 'a' || name.charAt(1) != 'r' || name.charAt(2) != 'g') {
+            return false;
+        }
+        for (int i = 3; i < length; i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
     }
 
 }
@@ -1,8 +1,11 @@
 package com.sourcegraph.common.javac;
 
 import com.sourcegraph.common.model.Hover;
+import com.sourcegraph.common.model.IndexProfile;
 import com.sourcegraph.common.model.JavacConfig;
 import com.sourcegraph.common.model.Range;
+import com.sourcegraph.common.util.PriorityExecutorService;
+import com.sourcegraph.common.util.TaskPriority;
 import com.sun.source.tree.CompilationUnitTree;
 import com.sun.source.util.Trees;
 import com.sun.tools.javac.code.Symbol;
@@ -27,6 +30,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tracks definitions and referencs
@@ -52,17 +56,42 @@ public class SymbolIndex {
 
     public  static final String UNIT_TYPE = "JavaArtifact";
 
+    /**
+     * Name of index file, located next to configuration file
+     */
+    public static final String INDEX_FILE_NAME = ".index";
+
     private Path root;
 
     private JavacConfig config;
 
-    private Future<SymbolIndex> future;
+    /**
+     * Pending index task, null if index is not being built
+     */
+    private volatile CompletableFuture<SymbolIndex> future;
+
+    /**
+     * Builder of pending index, null if index is not being built
+     */
+    private IndexBuilder builder;
+
+    /**
+     * Number of files indexed by pending build
+     */
+    private AtomicInteger filesIndexed = new AtomicInteger();
+
+    /**
+     * Store of unit index shards, null if shards are not used
+     */
+    private ShardStore shardStore;
 
     SymbolIndex(JavacConfig config,
-                Path root) {
+                Path root,
+                ShardStore shardStore) {
 
         this.config = config;
         this.root = root;
+        this.shardStore = shardStore;
     }
 
     /**
@@ -178,28 +207,123 @@ public class SymbolIndex {
     }
 
     /**
-     * Schedules building of all indexes
+     * Builds index as a graph of tasks: compilation task fans out to per-file indexing tasks, index file is finalized
+     * when all of them are done. None of the tasks waits for another one, pool threads are never blocked
      */
-    private class IndexBuilder implements Callable<SymbolIndex> {
+    private class IndexBuilder {
 
         private JavacConfig config;
 
-        private ExecutorService executorService;
+        private PriorityExecutorService executorService;
+
+        /**
+         * Priority of tasks not submitted yet
+         */
+        private volatile TaskPriority priority;
+
+        /**
+         * Compilation task, the only one that may be promoted while queued
+         */
+        private Future<?> compileTask;
+
+        /**
+         * Result of compilation task
+         */
+        private CompletableFuture<Build> compiled = new CompletableFuture<>();
+
+        /**
+         * Result of the whole build, completed when index file is written
+         */
+        private CompletableFuture<SymbolIndex> built;
 
-        IndexBuilder(JavacConfig config, ExecutorService executorService) {
+        /**
+         * Set when build becomes stale, checked by all the build tasks
+         */
+        private volatile boolean cancelled;
+
+        IndexBuilder(JavacConfig config, PriorityExecutorService executorService, TaskPriority priority) {
             this.config = config;
             this.executorService = executorService;
+            this.priority = priority;
+            built = compiled.thenCompose(this::index);
         }
 
-        @Override
-        public SymbolIndex call() throws Exception {
+        /**
+         * @return pending index build, may be completed as soon as build is started
+         */
+        CompletableFuture<SymbolIndex> getBuilt() {
+            return built;
+        }
+
+        /**
+         * Submits compilation task
+         */
+        void start() {
+            compileTask = executorService.submit(() -> {
+                try {
+                    compiled.complete(compile());
+                } catch (Throwable ex) {
+                    // javac wraps exceptions thrown by listeners
+                    compiled.completeExceptionally(cancelled ? new CancellationException() : ex);
+                }
+                return null;
+            }, priority);
+        }
+
+        /**
+         * Raises priority of build tasks that are not started yet
+         *
+         * @param priority new priority
+         */
+        void promote(TaskPriority priority) {
+            if (priority.compareTo(this.priority) < 0) {
+                this.priority = priority;
+                executorService.promote(compileTask, priority);
+            }
+        }
+
+        /**
+         * Stops build at the nearest checkpoint (javac event, source file, finalization), build completes with
+         * {@link CancellationException} and its output is discarded
+         */
+        void cancel() {
+            cancelled = true;
+            // compilation task that is not started yet won't run at all
+            if (compileTask.cancel(false)) {
+                compiled.completeExceptionally(new CancellationException());
+            }
+        }
+
+        /**
+         * @throws CancellationException if build was cancelled
+         */
+        private void checkCancelled() {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+        }
+
+        /**
+         * Compiles sources and opens index file, unless index is taken from shard store
+         *
+         * @return build state shared by per-file indexing tasks or null if index was taken from shard store
+         */
+        private Build compile() throws Exception {
+            String fingerprint = null;
+            String contentId = null;
+            if (shardStore != null) {
+                fingerprint = config.fingerprint(root);
+                contentId = ShardStore.contentId(root, config);
+                if (reuseShard(fingerprint, contentId)) {
+                    return null;
+                }
+            }
             LOGGER.info("Building indexes for [{}]", StringUtils.join(config.sources, ' '));
             JavacHolder javacHolder = new JavacHolder(config);
             Iterable<? extends JavaFileObject> sources;
             sources = getSourceFiles(javacHolder.fileManager);
-            Iterable<? extends CompilationUnitTree> units = javacHolder.compile(sources);
-            CompletionService<JCTree.JCCompilationUnit> completionService =
-                    new ExecutorCompletionService<>(executorService);
+            Iterable<? extends CompilationUnitTree> units = javacHolder.compile(sources, () -> cancelled);
+            checkCancelled();
 
             File indexFile = getIndexWriteFile();
 
@@ -207,36 +331,101 @@ public class SymbolIndex {
                     new FileOutputStream(indexFile),
                     "utf-8")));
 
-            ThreadSafeCSVPrinter threadSafeCSVPrinter = new ThreadSafeCSVPrinter(printer);
+            // type printer is shared by all indexing tasks to memoize rendered types
+            return new Build(javacHolder,
+                    units,
+                    indexFile,
+                    fingerprint,
+                    contentId,
+                    new ThreadSafeCSVPrinter(printer),
+                    new ShortTypePrinter());
+        }
+
+        /**
+         * Links unit index to shard built for the same unit content before, if any
+         *
+         * @param fingerprint unit fingerprint
+         * @param contentId   unit content ID
+         * @return true if index was taken from shard store
+         */
+        private boolean reuseShard(String fingerprint, String contentId) {
+            Path shard = shardStore.find(fingerprint, contentId);
+            if (shard == null) {
+                return false;
+            }
+            checkCancelled();
+            try {
+                ShardStore.link(shard, getIndexFile().toPath());
+            } catch (IOException ex) {
+                // pruned in the meantime
+                LOGGER.warn("Unable to reuse shard {}", shard, ex);
+                return false;
+            }
+            filesIndexed.set(config.files.size());
+            LOGGER.info("Reused indexes for [{}]", StringUtils.join(config.sources, ' '));
+            return true;
+        }
 
-            int total = 0;
-            for (CompilationUnitTree unit : units) {
+        /**
+         * Indexes all compilation units in parallel
+         *
+         * @param build build state, null if index was taken from shard store
+         * @return future completed when index file is written
+         */
+        private CompletableFuture<SymbolIndex> index(Build build) {
+            if (build == null) {
+                return CompletableFuture.completedFuture(SymbolIndex.this);
+            }
+            Executor executor = executorService.withPriority(priority);
+            Collection<CompletableFuture<Void>> tasks = new LinkedList<>();
+            for (CompilationUnitTree unit : build.units) {
                 JCTree.JCCompilationUnit jcCompilationUnit = (JCTree.JCCompilationUnit) unit;
-                total++;
-                completionService.submit(() -> {
+                tasks.add(CompletableFuture.runAsync(() -> {
+                    checkCancelled();
                     LOGGER.info("Indexing {}", unit.getSourceFile().getName());
-                    jcCompilationUnit.accept(new Indexer(javacHolder.trees, threadSafeCSVPrinter));
-                    return jcCompilationUnit;
-                });
-            }
-            boolean errors = false;
-            while (total > 0 && !errors) {
-                try {
-                    Future<JCTree.JCCompilationUnit> future = completionService.take();
-                    future.get();
-                } catch (Exception ex) {
-                    LOGGER.error("An error occurred while indexing source files", ex);
-                    errors = true;
-                }
-                total--;
+                    jcCompilationUnit.accept(new Indexer(build.javacHolder.trees,
+                            build.printer,
+                            build.typePrinter));
+                    filesIndexed.incrementAndGet();
+                }, executor).exceptionally(ex -> {
+                    if (!cancelled) {
+                        LOGGER.error("An error occurred while indexing source file {}",
+                                unit.getSourceFile().getName(),
+                                ex);
+                    }
+                    return null;
+                }));
             }
-            threadSafeCSVPrinter.flush();
-            threadSafeCSVPrinter.close();
+            return CompletableFuture.allOf(tasks.toArray(new CompletableFuture[tasks.size()])).
+                    thenApplyAsync(ignore -> finish(build), executor);
+        }
 
+        /**
+         * Flushes index file and moves it to destination, stale index file is removed instead
+         *
+         * @param build build state
+         * @return index
+         */
+        private SymbolIndex finish(Build build) {
+            try {
+                build.printer.flush();
+                build.printer.close();
+            } catch (IOException ex) {
+                build.indexFile.delete();
+                throw new CompletionException(ex);
+            }
+            if (cancelled) {
+                build.indexFile.delete();
+                LOGGER.info("Cancelled building indexes for [{}]", StringUtils.join(config.sources, ' '));
+                throw new CancellationException();
+            }
             // atomic rename to destination
-            indexFile.renameTo(getIndexFile());
+            build.indexFile.renameTo(getIndexFile());
+            if (build.fingerprint != null) {
+                // shard shares file with index
+                shardStore.put(build.fingerprint, build.contentId, getIndexFile().toPath());
+            }
 
-            future = null;
             LOGGER.info("Built indexes for [{}]", StringUtils.join(config.sources, ' '));
             return SymbolIndex.this;
         }
@@ -248,15 +437,113 @@ public class SymbolIndex {
     }
 
     /**
-     * Starts indexing
+     * State of index build shared by indexing tasks
+     */
+    private static class Build {
+
+        private JavacHolder javacHolder;
+
+        private Iterable<? extends CompilationUnitTree> units;
+
+        /**
+         * Temporary file index is written to
+         */
+        private File indexFile;
+
+        /**
+         * Unit fingerprint, null if shards are not used
+         */
+        private String fingerprint;
+
+        /**
+         * Unit content ID, null if shards are not used
+         */
+        private String contentId;
+
+        private ThreadSafeCSVPrinter printer;
+
+        private ShortTypePrinter typePrinter;
+
+        Build(JavacHolder javacHolder,
+              Iterable<? extends CompilationUnitTree> units,
+              File indexFile,
+              String fingerprint,
+              String contentId,
+              ThreadSafeCSVPrinter printer,
+              ShortTypePrinter typePrinter) {
+            this.javacHolder = javacHolder;
+            this.units = units;
+            this.indexFile = indexFile;
+            this.fingerprint = fingerprint;
+            this.contentId = contentId;
+            this.printer = printer;
+            this.typePrinter = typePrinter;
+        }
+    }
+
+    /**
+     * Starts indexing unless index is already being built, in this case all the callers share the same pending task
+     * (which gets promoted if caller has higher priority)
      *
-     * @return
+     * @param executorService executor to build index in
+     * @param priority        build priority
+     * @return pending index task
      */
-    public Future<SymbolIndex> index(ExecutorService executorService) {
-        future = executorService.submit(new IndexBuilder(config, executorService));
+    public synchronized CompletableFuture<SymbolIndex> index(PriorityExecutorService executorService,
+                                                             TaskPriority priority) {
+        if (future != null) {
+            builder.promote(priority);
+            return future;
+        }
+        if (isIndexed()) {
+            return CompletableFuture.completedFuture(this);
+        }
+        filesIndexed.set(0);
+        IndexBuilder pending = new IndexBuilder(config, executorService, priority);
+        // build is published before it starts: quick build (failed early or taken from shard store) may complete
+        // right in start(), resetting state on this very thread, the lock is reentrant
+        CompletableFuture<SymbolIndex> ret = pending.getBuilt().whenComplete((index, ex) -> {
+            synchronized (SymbolIndex.this) {
+                if (builder == pending) {
+                    future = null;
+                    builder = null;
+                }
+            }
+        });
+        builder = pending;
+        future = ret;
+        pending.start();
+        return ret;
+    }
+
+    /**
+     * Cancels pending build (if any), cancelled build stops consuming resources as soon as possible and leaves no
+     * index behind
+     *
+     * @return future completed when cancelled build stops or null if index is not being built
+     */
+    public synchronized CompletableFuture<SymbolIndex> cancel() {
+        if (builder == null) {
+            return null;
+        }
+        builder.cancel();
         return future;
     }
 
+    /**
+     * @return number of source files in unit
+     */
+    public int getUnitSize() {
+        return config.files == null ? 0 : config.files.size();
+    }
+
+    /**
+     * @return number of files indexed so far by pending build
+     */
+    public int getFilesIndexed() {
+        return isBeingIndexed() ? filesIndexed.get() : 0;
+    }
+
     /**
      * @return true if symbols are being indexed
      */
@@ -267,7 +554,7 @@ public class SymbolIndex {
     /**
      * @return pending index task
      */
-    public Future<SymbolIndex> getIndexTask() {
+    public CompletableFuture<SymbolIndex> getIndexTask() {
         return future;
     }
 
@@ -337,7 +624,7 @@ public class SymbolIndex {
      */
     private File getIndexFile() {
         File directory = config.getFile().toFile().getParentFile();
-        return new File(directory, ".index");
+        return new File(directory, INDEX_FILE_NAME);
     }
 
     /**
@@ -382,9 +669,15 @@ public class SymbolIndex {
 
         private Trees trees;
 
-        Indexer(Trees trees, ThreadSafeCSVPrinter printer) {
+        private ShortTypePrinter typePrinter;
+
+        private IndexProfile profile;
+
+        Indexer(Trees trees, ThreadSafeCSVPrinter printer, ShortTypePrinter typePrinter) {
             this.trees = trees;
             this.printer = printer;
+            this.typePrinter = typePrinter;
+            this.profile = config.effectiveProfile();
         }
 
         @Override
@@ -455,7 +748,13 @@ public class SymbolIndex {
                 s.setName(symbol.getQualifiedName().toString());
                 s.setPath(key);
                 s.setKind(symbol.getKind().name().toLowerCase());
-                s.setDocHtml(this.tree.docComments.getCommentText(tree));
+                if (profile.indexesHovers()) {
+                    s.setTitle(getTitle(this.tree, tree, symbol));
+                    s.setDocHtml(this.tree.docComments.getCommentText(tree));
+                } else {
+                    s.setTitle(StringUtils.EMPTY);
+                    s.setDocHtml(StringUtils.EMPTY);
+                }
                 s.setFile(root.toUri().relativize(this.tree.getSourceFile().toUri()).toString());
                 s.setUnitType(UNIT_TYPE);
                 s.setUnit(config.unit);
@@ -471,7 +770,7 @@ public class SymbolIndex {
                 record.add(s.getName());
                 record.add(s.getKind());
                 record.add(config.unit);
-                record.add(getTitle(this.tree, tree, symbol));
+                record.add(s.getTitle());
                 record.add(s.getDocHtml());
                 record.add(isExported(symbol));
 
@@ -491,8 +790,11 @@ public class SymbolIndex {
          */
         private void addReference(JCTree tree, Symbol symbol) {
             if (symbol != null && shouldIndex(symbol)) {
-                String key = uniqueName(symbol);
                 JavaFileObject externalOrigin = getExternalOrigin(symbol);
+                if (externalOrigin == null && !profile.indexesLocalRefs()) {
+                    return;
+                }
+                String key = uniqueName(symbol);
 
                 Collection<Object> record = new LinkedList<>();
                 record.add(REF);
@@ -579,11 +881,12 @@ public class SymbolIndex {
                 case ENUM_CONSTANT:
                 case FIELD:
                 case METHOD:
+                    return true;
                 case PARAMETER:
                 case EXCEPTION_PARAMETER:
                 case LOCAL_VARIABLE:
                 case TYPE_PARAMETER:
-                    return true;
+                    return profile.indexesLocals();
                 case CLASS:
                     return !symbol.isAnonymous();
                 case CONSTRUCTOR:
@@ -690,17 +993,13 @@ public class SymbolIndex {
                 case CONSTRUCTOR:
                 case STATIC_INIT:
                 case INSTANCE_INIT:
-                    Symbol.MethodSymbol method = (Symbol.MethodSymbol) foundSymbol;
-                    String signature = ShortTypePrinter.methodSignature(method);
-                    String returnType = ShortTypePrinter.print(method.getReturnType());
-
-                    return returnType + " " + signature;
+                    return typePrinter.printMethod((Symbol.MethodSymbol) foundSymbol);
                 case PARAMETER:
                 case LOCAL_VARIABLE:
                 case EXCEPTION_PARAMETER:
                 case ENUM_CONSTANT:
                 case FIELD:
-                    return ShortTypePrinter.print(foundSymbol.type);
+                    return typePrinter.printType(foundSymbol.type);
                 case TYPE_PARAMETER:
                 case OTHER:
                 case RESOURCE_VARIABLE:
@@ -1,16 +1,17 @@
 package com.sourcegraph.common.javac;
 
-import com.sourcegraph.common.config.builder.ScanUtil;
+import com.sourcegraph.common.config.builder.WorkspaceInventory;
 import com.sourcegraph.common.model.JavacConfig;
 import com.sourcegraph.common.service.WorkspaceBeingPreparedException;
+import com.sourcegraph.common.util.PriorityExecutorService;
+import com.sourcegraph.common.util.TaskPriority;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Collection;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.*;
 
 /**
@@ -23,12 +24,44 @@ public class Workspace {
     private Path root;
 
     /**
-     * config file -> config mapping
+     * config file -> config mapping, each configuration file is parsed once
      */
-    private Map<Path, JavacConfig> configCache = new ConcurrentHashMap<>();
+    private Map<Path, JavacConfig> configs = new ConcurrentHashMap<>();
 
-    Workspace(Path root) {
+    /**
+     * directory -> config file mapping, used only by workspaces that have no manifest
+     */
+    private Map<Path, Path> configFileCache = new ConcurrentHashMap<>();
+
+    /**
+     * config file -> index mapping, there is exactly one index object per configuration
+     */
+    private Map<Path, SymbolIndex> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * All configuration files in workspace, loaded once from workspace manifest
+     */
+    private volatile Collection<Path> configFiles;
+
+    /**
+     * Resolves directories to configuration files, built from workspace manifest
+     */
+    private volatile ConfigTrie configTrie;
+
+    /**
+     * config file -> last time unit was queried
+     */
+    private Map<Path, Long> unitAccess;
+
+    /**
+     * Store of unit index shards, null if shards are not used
+     */
+    private ShardStore shardStore;
+
+    Workspace(Path root, Map<Path, Long> unitAccess, ShardStore shardStore) {
         this.root = root;
+        this.unitAccess = unitAccess;
+        this.shardStore = shardStore;
     }
 
     /**
@@ -36,46 +69,101 @@ public class Workspace {
      * @return index that contains symbols defined/used in the given source file
      */
     public SymbolIndex findIndex(Path path) throws WorkspaceBeingPreparedException {
+        SymbolIndex ret = getIndex(path);
+        unitAccess.put(ret.getConfig().getFile(), System.currentTimeMillis());
+        return ret;
+    }
+
+    /**
+     * @param path source or configuration file path
+     * @return index that covers the given file, does not count as unit access
+     */
+    private SymbolIndex getIndex(Path path) throws WorkspaceBeingPreparedException {
         Path dir = path.getParent();
         JavacConfig config = findConfig(dir);
         if (config == null) {
             throw new WorkspaceBeingPreparedException();
         }
-        return new SymbolIndex(config, root);
+        return indexes.computeIfAbsent(config.getFile(), file -> new SymbolIndex(config, root, shardStore));
     }
 
     /**
-     * Ensures that all indexes are computed, blocks execution
+     * Starts computing all indexes that are not computed yet, does not block execution
      *
+     * @param executorService executor to build indexes in
+     * @param priority        build priority
+     * @return future completed when all indexes are built, index errors are logged and ignored, future is completed
+     * exceptionally if some builds were cancelled
      * @throws IOException
      */
-    public void computeIndexes(ExecutorService executorService) throws IOException, WorkspaceBeingPreparedException {
-        Collection<SymbolIndex> indexes = getIndexes();
-
-        BlockingQueue<Future<SymbolIndex>> queue = new LinkedBlockingQueue<>();
-        CompletionService<SymbolIndex> completionService = new ExecutorCompletionService<>(executorService, queue);
+    public CompletableFuture<Void> computeIndexes(PriorityExecutorService executorService, TaskPriority priority)
+            throws IOException, WorkspaceBeingPreparedException {
+        return computeIndexes(executorService, priority, null);
+    }
 
+    /**
+     * Starts computing all indexes that are not computed yet in the given order, does not block execution
+     *
+     * @param executorService executor to build indexes in
+     * @param priority        build priority
+     * @param order           order to submit builds in (builds of the same priority start in submission order),
+     *                        null means no specific order
+     * @return future completed when all indexes are built, index errors are logged and ignored, future is completed
+     * exceptionally (with {@link CancellationException} as a cause) if some builds were cancelled
+     * @throws IOException
+     */
+    public CompletableFuture<Void> computeIndexes(PriorityExecutorService executorService,
+                                                  TaskPriority priority,
+                                                  IndexOrder order)
+            throws IOException, WorkspaceBeingPreparedException {
+        List<SymbolIndex> indexes = new ArrayList<>(getIndexes());
+        if (order != null) {
+            indexes.sort(getComparator(order));
+        }
+        Collection<CompletableFuture<SymbolIndex>> tasks = new LinkedList<>();
         for (SymbolIndex index : indexes) {
-            if (index.isBeingIndexed()) {
-                queue.add(index.getIndexTask());
-            }
-            if (index.isIndexed()) {
-                continue;
+            if (!index.isIndexed()) {
+                // joins pending task if index is already being built
+                tasks.add(index.index(executorService, priority).exceptionally(ex -> {
+                    if (ex instanceof CancellationException || ex.getCause() instanceof CancellationException) {
+                        LOGGER.info("Index build of {} was cancelled", index.getConfig().getFile());
+                        throw ex instanceof CompletionException ? (CompletionException) ex : new CompletionException(ex);
+                    } else {
+                        LOGGER.error("An error occurred while indexing source files", ex);
+                    }
+                    return null;
+                }));
             }
-            executorService.submit(() -> index.index(executorService).get());
+        }
+        return CompletableFuture.allOf(tasks.toArray(new CompletableFuture[tasks.size()]));
+    }
 
+    /**
+     * Cancels all pending index builds, used when builds become stale (workspace is reconfigured or evicted)
+     *
+     * @return future completed when all cancelled builds stop
+     */
+    public CompletableFuture<Void> cancelIndexing() {
+        Collection<CompletableFuture<?>> tasks = new LinkedList<>();
+        for (SymbolIndex index : indexes.values()) {
+            CompletableFuture<SymbolIndex> task = index.cancel();
+            if (task != null) {
+                tasks.add(task.handle((ret, ex) -> null));
+            }
         }
-        int total = queue.size();
-        boolean errors = false;
-        while (total > 0 && !errors) {
-            try {
-                completionService.take().get();
-            } catch (Exception ex) {
-                LOGGER.error("An error occurred while indexing source files", ex);
-                errors = true;
+        return CompletableFuture.allOf(tasks.toArray(new CompletableFuture[tasks.size()]));
+    }
+
+    /**
+     * @return true if any of workspace indexes is being built
+     */
+    public boolean isBeingIndexed() {
+        for (SymbolIndex index : indexes.values()) {
+            if (index.isBeingIndexed()) {
+                return true;
             }
-            total--;
         }
+        return false;
     }
 
     /**
@@ -84,32 +172,109 @@ public class Workspace {
      * @throws WorkspaceBeingPreparedException if workspace is not configured (yet)
      */
     public Collection<SymbolIndex> getIndexes() throws IOException, WorkspaceBeingPreparedException {
-        Collection<Path> configs = ScanUtil.findMatchingFiles(root, JavacConfig.CONFIG_FILE_NAME);
         Collection<SymbolIndex> indexes = new LinkedList<>();
-        for (Path p : configs) {
-            indexes.add(findIndex(p));
+        for (Path p : getConfigFiles()) {
+            indexes.add(getIndex(p));
         }
         return indexes;
     }
 
+    /**
+     * @param index index
+     * @return other indexes that share source roots with the given one (dependencies and dependents of its unit),
+     * each source file is indexed by a single unit, so definitions of symbols referenced from unit's files or
+     * references to unit's symbols may be found in these indexes
+     * @throws IOException
+     */
+    public Collection<SymbolIndex> getRelatedIndexes(SymbolIndex index)
+            throws IOException, WorkspaceBeingPreparedException {
+        Collection<String> sources = index.getConfig().sources;
+        Collection<SymbolIndex> ret = new LinkedList<>();
+        if (sources == null) {
+            return ret;
+        }
+        for (SymbolIndex other : getIndexes()) {
+            Collection<String> otherSources = other.getConfig().sources;
+            if (other != index && otherSources != null && !Collections.disjoint(sources, otherSources)) {
+                ret.add(other);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param order index order
+     * @return comparator that sorts indexes in the given order
+     */
+    private Comparator<SymbolIndex> getComparator(IndexOrder order) {
+        Comparator<SymbolIndex> bySize = Comparator.comparingInt(SymbolIndex::getUnitSize);
+        if (order == IndexOrder.SIZE) {
+            return bySize;
+        }
+        Comparator<SymbolIndex> byAccess = Comparator.comparingLong(index ->
+                -unitAccess.getOrDefault(index.getConfig().getFile(), 0L));
+        return byAccess.thenComparing(bySize);
+    }
+
+    /**
+     * @return all configuration files in workspace
+     * @throws IOException if there was an I/O error while searching for configuration files
+     */
+    private Collection<Path> getConfigFiles() throws IOException {
+        Collection<Path> ret = loadManifest();
+        if (ret == null) {
+            // workspace is not configured yet or was configured before manifests were introduced,
+            // not caching results of scan
+            return WorkspaceInventory.scan(root).getConfigFiles();
+        }
+        return ret;
+    }
+
+    /**
+     * Loads workspace manifest (once) and builds configuration lookup trie
+     *
+     * @return configuration files listed in workspace manifest or null if there is no manifest
+     */
+    private Collection<Path> loadManifest() {
+        Collection<Path> ret = configFiles;
+        if (ret == null) {
+            ret = JavacConfig.readManifest(root);
+            if (ret != null) {
+                configTrie = new ConfigTrie(ret);
+                configFiles = ret;
+            }
+        }
+        return ret;
+    }
+
     /**
      * @param dir directory to search in
      * @return configuration for specific directory (or any parent)
      */
     private JavacConfig findConfig(Path dir) {
-        return configCache.computeIfAbsent(dir, this::doFindConfig);
+        dir = dir.toAbsolutePath().normalize();
+        Path configFile;
+        if (loadManifest() != null) {
+            configFile = configTrie.find(dir);
+        } else {
+            configFile = configFileCache.computeIfAbsent(dir, this::doFindConfigFile);
+        }
+        if (configFile == null) {
+            return null;
+        }
+        return configs.computeIfAbsent(configFile, file -> JavacConfig.read(file.getParent()));
     }
 
     /**
      * Searches for configuration in the given directory, climbs up until workspace root is reached
      *
      * @param dir directory to search in
-     * @return configuration object to be used for specific directory
+     * @return configuration file to be used for specific directory
      */
-    private JavacConfig doFindConfig(Path dir) {
+    private Path doFindConfigFile(Path dir) {
         while (true) {
-            JavacConfig found = JavacConfig.read(dir);
-            if (found != null) {
+            Path found = dir.resolve(JavacConfig.CONFIG_FILE_NAME);
+            if (Files.isRegularFile(found)) {
                 return found;
             } else if (root.startsWith(dir)) {
                 return null;
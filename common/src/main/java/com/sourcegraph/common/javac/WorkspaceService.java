@@ -1,10 +1,19 @@
 package com.sourcegraph.common.javac;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.annotation.CacheEvict;
 import org.springframework.cache.annotation.Cacheable;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import java.io.IOException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Maintains workspaces
@@ -12,13 +21,85 @@ import java.nio.file.Path;
 @Service
 public class WorkspaceService {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(WorkspaceService.class);
+
+    /**
+     * config file -> last time unit was queried, survives reconfiguration of workspaces but not their eviction
+     */
+    private Map<Path, Long> unitAccess = new ConcurrentHashMap<>();
+
+    /**
+     * Indicates if unit index shards should be shared between workspaces
+     */
+    @Value("${index.shards:true}")
+    private boolean useShards;
+
+    /**
+     * Directory to keep unit index shards in
+     */
+    @Value("${shards:${SGPATH:${user.home}/.sourcegraph}/shards/java}")
+    private String shards;
+
+    /**
+     * Shards not used for X seconds are removed
+     */
+    @Value("${shards.max.age:604800}")
+    private long shardsMaxAge;
+
+    private ShardStore shardStore;
+
+    @PostConstruct
+    private void init() {
+        if (useShards) {
+            shardStore = new ShardStore(Paths.get(shards));
+        }
+    }
+
     /**
      * @param path workspace root
      * @return workspace with the specified root
      */
     @Cacheable("workspaces")
     public Workspace getWorkspace(Path path) {
-        return new Workspace(path);
+        return new Workspace(path, unitAccess, shardStore);
+    }
+
+    /**
+     * Drops workspace object, next request will make a new one reading fresh configuration
+     *
+     * @param path workspace root
+     */
+    @CacheEvict(value = "workspaces", key = "#path")
+    public void invalidate(Path path) {
+    }
+
+    /**
+     * Drops workspace object and everything known about units of workspace that is about to be removed
+     *
+     * @param path workspace root
+     */
+    @CacheEvict(value = "workspaces", key = "#path")
+    public void forget(Path path) {
+        // config files are absolute and normalized
+        Path root = path.toAbsolutePath().normalize();
+        unitAccess.keySet().removeIf(configFile -> configFile.startsWith(root));
+    }
+
+    /**
+     * Removes shards that weren't used for a while
+     */
+    public void pruneShards() {
+        if (shardStore == null) {
+            return;
+        }
+        try {
+            int pruned = shardStore.prune(TimeUnit.SECONDS.toMillis(shardsMaxAge));
+            if (pruned > 0) {
+                LOGGER.info("Removed {} unused shard(s)", pruned);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to prune shards", e);
+        }
     }
 
     /**
@@ -26,6 +107,7 @@ public class WorkspaceService {
      */
     @CacheEvict(value = "workspaces", allEntries = true)
     public void purge() {
+        unitAccess.clear();
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,80 @@
+package com.sourcegraph.common.model;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Index profile controls which symbol kinds, columns and source roots get indexed
+ */
+public enum IndexProfile {
+
+    /**
+     * All symbol kinds (including locals and parameters), hover titles and doc comments, test sources
+     */
+    FULL(true, true, true, true),
+
+    /**
+     * All symbol kinds and test sources, but no hover titles and doc comments
+     */
+    NAVIGATION(true, true, false, true),
+
+    /**
+     * Only what is needed to compute exported symbols and external references
+     */
+    EXPORTS_ONLY(false, false, false, false);
+
+    private final boolean locals;
+
+    private final boolean localRefs;
+
+    private final boolean hovers;
+
+    private final boolean testSources;
+
+    IndexProfile(boolean locals, boolean localRefs, boolean hovers, boolean testSources) {
+        this.locals = locals;
+        this.localRefs = localRefs;
+        this.hovers = hovers;
+        this.testSources = testSources;
+    }
+
+    /**
+     * @return true if parameters, local variables, exception parameters and type parameters should be indexed
+     */
+    public boolean indexesLocals() {
+        return locals;
+    }
+
+    /**
+     * @return true if references to symbols defined in the workspace should be indexed
+     */
+    public boolean indexesLocalRefs() {
+        return localRefs;
+    }
+
+    /**
+     * @return true if hover titles and doc comments should be recorded for definitions
+     */
+    public boolean indexesHovers() {
+        return hovers;
+    }
+
+    /**
+     * @return true if test source roots should be indexed
+     */
+    public boolean indexesTestSources() {
+        return testSources;
+    }
+
+    /**
+     * @param name profile name (full, navigation, exports-only), case insensitive
+     * @return matching profile
+     * @throws IllegalArgumentException if there is no such profile
+     */
+    public static IndexProfile fromString(String name) {
+        if (StringUtils.isEmpty(name)) {
+            throw new IllegalArgumentException("Empty index profile name");
+        }
+        return valueOf(name.trim().replace('-', '_').toUpperCase());
+    }
+
+}
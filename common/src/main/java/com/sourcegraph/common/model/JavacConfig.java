@@ -5,10 +5,16 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.util.DigestUtils;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.Collection;
+import java.util.LinkedList;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -18,6 +24,11 @@ public class JavacConfig {
 
     public static final String CONFIG_FILE_NAME = ".jconfig.json";
 
+    /**
+     * Lists all configuration files in workspace (relative to workspace root), one per line
+     */
+    public static final String MANIFEST_FILE_NAME = ".jconfigs";
+
     private static ObjectMapper mapper;
 
     static {
@@ -32,6 +43,7 @@ public class JavacConfig {
     public boolean androidSdk;
     public Collection<Dependency> dependencies;
     public String unit;
+    public IndexProfile profile;
 
     private Path file;
 
@@ -112,9 +124,89 @@ public class JavacConfig {
         return null;
     }
 
+    /**
+     * Saves list of configuration files found in workspace
+     * @param workspaceRoot workspace root
+     * @param configs configuration files
+     * @throws IOException
+     */
+    public static void writeManifest(Path workspaceRoot, Collection<Path> configs) throws IOException {
+        Collection<String> lines = configs.
+                stream().
+                map(p -> workspaceRoot.relativize(p.toAbsolutePath().normalize()).toString()).
+                sorted().
+                collect(Collectors.toList());
+        Path target = workspaceRoot.resolve(MANIFEST_FILE_NAME);
+        Path tmp = Files.createTempFile(workspaceRoot, "jconfigs", "tmp");
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        LOGGER.info("Wrote {}", target);
+    }
+
+    /**
+     * @param workspaceRoot workspace root
+     * @return configuration files listed in workspace manifest or null if there is no manifest
+     */
+    public static Collection<Path> readManifest(Path workspaceRoot) {
+        Path manifest = workspaceRoot.resolve(MANIFEST_FILE_NAME);
+        if (!Files.isRegularFile(manifest)) {
+            return null;
+        }
+        try {
+            Collection<Path> ret = new LinkedList<>();
+            for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+                if (!StringUtils.isBlank(line)) {
+                    ret.add(workspaceRoot.resolve(line).toAbsolutePath().normalize());
+                }
+            }
+            return ret;
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read {}", manifest, e);
+            return null;
+        }
+    }
+
+    /**
+     * @param workspaceRoot workspace root
+     * @return hash of settings that affect how unit's sources are compiled and indexed (source files themselves
+     * excluded), paths inside workspace are taken relative to workspace root so that the same unit of different
+     * revisions or forks gets the same fingerprint
+     */
+    public String fingerprint(Path workspaceRoot) {
+        Path root = workspaceRoot.toAbsolutePath().normalize();
+        Collection<String> values = new LinkedList<>();
+        values.add(fingerprintPaths(root, sources));
+        values.add(fingerprintPaths(root, classPath));
+        values.add(outputDirectory == null ? null : fingerprintPath(root, outputDirectory));
+        values.add(unit);
+        values.add(effectiveProfile().name());
+        values.add(String.valueOf(android));
+        values.add(String.valueOf(androidSdk));
+        return DigestUtils.md5DigestAsHex(StringUtils.join(values, '\n').getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String fingerprintPaths(Path root, Collection<String> paths) {
+        if (paths == null) {
+            return null;
+        }
+        return paths.stream().map(path -> fingerprintPath(root, path)).collect(Collectors.joining(File.pathSeparator));
+    }
+
+    private static String fingerprintPath(Path root, String path) {
+        Path normalized = Paths.get(path).toAbsolutePath().normalize();
+        return normalized.startsWith(root) ? root.relativize(normalized).toString() : normalized.toString();
+    }
+
     @JsonIgnore
     public Path getFile() {
         return file;
     }
 
+    /**
+     * @return index profile to build index with, configurations without explicit profile are indexed fully
+     */
+    public IndexProfile effectiveProfile() {
+        return profile == null ? IndexProfile.FULL : profile;
+    }
+
 }
@@ -0,0 +1,154 @@
+package com.sourcegraph.common.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Objects;
+
+/**
+ * Workspace preparation progress
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class WorkspaceStatus {
+
+    public enum Phase {
+        /**
+         * Nothing is known about workspace, it was not requested yet
+         */
+        NONE,
+        /**
+         * Waiting for admission
+         */
+        QUEUED,
+        CLONING,
+        CONFIGURING,
+        /**
+         * Configured, building indexes in background. Workspace serves queries for indexed units
+         */
+        INDEXING,
+        READY,
+        FAILED
+    }
+
+    @JsonProperty(value = "Repo")
+    private String repo;
+
+    @JsonProperty(value = "Commit")
+    private String commit;
+
+    @JsonProperty(value = "Phase")
+    private Phase phase;
+
+    @JsonProperty(value = "Error")
+    private String error;
+
+    @JsonProperty(value = "UnitsTotal")
+    private Integer unitsTotal;
+
+    @JsonProperty(value = "UnitsDone")
+    private Integer unitsDone;
+
+    @JsonProperty(value = "FilesTotal")
+    private Integer filesTotal;
+
+    @JsonProperty(value = "FilesDone")
+    private Integer filesDone;
+
+    /**
+     * Estimated number of seconds left to complete indexing
+     */
+    @JsonProperty(value = "ETA")
+    private Long eta;
+
+    public String getRepo() {
+        return repo;
+    }
+
+    public void setRepo(String repo) {
+        this.repo = repo;
+    }
+
+    public String getCommit() {
+        return commit;
+    }
+
+    public void setCommit(String commit) {
+        this.commit = commit;
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    public void setPhase(Phase phase) {
+        this.phase = phase;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    public Integer getUnitsTotal() {
+        return unitsTotal;
+    }
+
+    public void setUnitsTotal(Integer unitsTotal) {
+        this.unitsTotal = unitsTotal;
+    }
+
+    public Integer getUnitsDone() {
+        return unitsDone;
+    }
+
+    public void setUnitsDone(Integer unitsDone) {
+        this.unitsDone = unitsDone;
+    }
+
+    public Integer getFilesTotal() {
+        return filesTotal;
+    }
+
+    public void setFilesTotal(Integer filesTotal) {
+        this.filesTotal = filesTotal;
+    }
+
+    public Integer getFilesDone() {
+        return filesDone;
+    }
+
+    public void setFilesDone(Integer filesDone) {
+        this.filesDone = filesDone;
+    }
+
+    public Long getEta() {
+        return eta;
+    }
+
+    public void setEta(Long eta) {
+        this.eta = eta;
+    }
+
+    /**
+     * @return true if workspace reached final phase
+     */
+    @JsonIgnore
+    public boolean isDone() {
+        return phase == Phase.READY || phase == Phase.FAILED;
+    }
+
+    /**
+     * @param o status to compare with
+     * @return true if both statuses report the same progress
+     */
+    public boolean sameProgress(WorkspaceStatus o) {
+        return o != null &&
+                phase == o.phase &&
+                Objects.equals(unitsDone, o.unitsDone) &&
+                Objects.equals(filesDone, o.filesDone);
+    }
+}
@@ -0,0 +1,159 @@
+package com.sourcegraph.common.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Bounds number of repository jobs (clone + configure) running at once, globally and per repository.
+ * Jobs that can't start immediately wait in a bounded queue, when queue is full new jobs are rejected
+ */
+@Service
+public class AdmissionControl {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdmissionControl.class);
+
+    /**
+     * Maximum number of jobs running at once
+     */
+    @Value("${admission.active.max:8}")
+    private int maxActive;
+
+    /**
+     * Maximum number of jobs running at once for the same repository (different revisions)
+     */
+    @Value("${admission.active.repo.max:2}")
+    private int maxActivePerRepo;
+
+    /**
+     * Maximum number of jobs waiting to start
+     */
+    @Value("${admission.pending.max:64}")
+    private int maxPending;
+
+    /**
+     * Number of seconds rejected clients are asked to wait before retrying
+     */
+    @Value("${admission.retry.after:30}")
+    private long retryAfter;
+
+    private int active;
+
+    /**
+     * repository -> number of running jobs
+     */
+    private Map<String, Integer> activePerRepo = new HashMap<>();
+
+    /**
+     * Jobs waiting to start, in arrival order
+     */
+    private Deque<Job<?>> pending = new LinkedList<>();
+
+    /**
+     * Starts job if limits allow, otherwise queues it
+     *
+     * @param repo repository job works on
+     * @param job  job to start, produces job's future
+     * @return future completed with job's result
+     * @throws ServiceBusyException if job can't start and queue is full
+     */
+    public <T> CompletableFuture<T> submit(String repo, Supplier<CompletableFuture<T>> job)
+            throws ServiceBusyException {
+        Job<T> entry = new Job<>(repo, job);
+        synchronized (this) {
+            if (!canStart(repo)) {
+                if (pending.size() >= maxPending) {
+                    LOGGER.warn("Rejecting job for {}, {} jobs are running and {} are waiting",
+                            repo,
+                            active,
+                            pending.size());
+                    throw new ServiceBusyException("Too many pending jobs, retry later", retryAfter);
+                }
+                pending.add(entry);
+                return entry.result;
+            }
+            acquire(repo);
+        }
+        start(entry);
+        return entry.result;
+    }
+
+    /**
+     * Runs job and schedules release of its slot when it's done
+     *
+     * @param entry job to run, slot is already acquired
+     */
+    private <T> void start(Job<T> entry) {
+        CompletableFuture<T> future;
+        try {
+            future = entry.job.get();
+        } catch (Exception ex) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(ex);
+        }
+        future.whenComplete((value, ex) -> {
+            release(entry.repo);
+            if (ex == null) {
+                entry.result.complete(value);
+            } else {
+                entry.result.completeExceptionally(ex);
+            }
+        });
+    }
+
+    /**
+     * Releases job's slot and starts waiting jobs that fit into limits
+     *
+     * @param repo repository job worked on
+     */
+    private void release(String repo) {
+        Collection<Job<?>> next = new LinkedList<>();
+        synchronized (this) {
+            active--;
+            activePerRepo.computeIfPresent(repo, (key, count) -> count > 1 ? count - 1 : null);
+            Iterator<Job<?>> i = pending.iterator();
+            while (i.hasNext() && active < maxActive) {
+                Job<?> job = i.next();
+                if (canStart(job.repo)) {
+                    i.remove();
+                    acquire(job.repo);
+                    next.add(job);
+                }
+            }
+        }
+        for (Job<?> job : next) {
+            start(job);
+        }
+    }
+
+    private boolean canStart(String repo) {
+        return active < maxActive && activePerRepo.getOrDefault(repo, 0) < maxActivePerRepo;
+    }
+
+    private void acquire(String repo) {
+        active++;
+        activePerRepo.merge(repo, 1, Integer::sum);
+    }
+
+    /**
+     * Admitted job
+     */
+    private static class Job<T> {
+
+        private String repo;
+
+        private Supplier<CompletableFuture<T>> job;
+
+        private CompletableFuture<T> result = new CompletableFuture<>();
+
+        Job(String repo, Supplier<CompletableFuture<T>> job) {
+            this.repo = repo;
+            this.job = job;
+        }
+    }
+}
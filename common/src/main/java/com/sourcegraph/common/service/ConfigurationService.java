@@ -1,18 +1,29 @@
 package com.sourcegraph.common.service;
 
+import com.sourcegraph.common.config.builder.BuildFingerprint;
 import com.sourcegraph.common.config.builder.DefaultBuilder;
 import com.sourcegraph.common.config.builder.GradleBuilder;
 import com.sourcegraph.common.config.builder.MavenBuilder;
+import com.sourcegraph.common.config.builder.WorkspaceInventory;
 import com.sourcegraph.common.configuration.TaskExecutorConfiguration;
+import com.sourcegraph.common.javac.WorkspaceService;
+import com.sourcegraph.common.model.IndexProfile;
+import com.sourcegraph.common.model.JavacConfig;
+import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 
@@ -24,12 +35,26 @@ public class ConfigurationService {
     /**
      * File that indicates completion of configuration process
      */
-    private static final String STAMP_FILE = ".sourcegraph";
+    static final String STAMP_FILE = ".sourcegraph";
+
+    /**
+     * Fingerprint of build files configuration was made from, located next to stamp file
+     */
+    static final String FINGERPRINT_FILE = ".sourcegraph-fingerprint";
 
     @Autowired
     private TaskExecutorConfiguration taskExecutorConfiguration;
 
-    private Map<File, Future<File>> jobs = new ConcurrentHashMap<>();
+    @Autowired
+    private WorkspaceService workspaceService;
+
+    /**
+     * Index profile to use when workspace is configured without explicit one
+     */
+    @Value("${index.profile:full}")
+    private String defaultProfile;
+
+    private Map<File, CompletableFuture<File>> jobs = new ConcurrentHashMap<>();
 
     @Async
     public Future<File> configure(File workspace) {
@@ -38,28 +63,106 @@ public class ConfigurationService {
 
     @Async
     public Future<File> configure(File workspace, boolean update) {
-        Future<File> current = update ? null : jobs.get(workspace);
+        return configure(workspace, update, null);
+    }
+
+    /**
+     * @param workspace workspace root
+     * @param update    indicates if we should force configuration
+     * @param profile   index profile to use, null means default one
+     * @return workspace root, configuration happens asynchronously
+     */
+    @Async
+    public CompletableFuture<File> configure(File workspace, boolean update, IndexProfile profile) {
+        IndexProfile indexProfile = profile == null ? IndexProfile.fromString(defaultProfile) : profile;
+        CompletableFuture<File> current = update ? null : jobs.get(workspace);
         if (current != null) {
             return current;
         }
-        Future<File> ret = taskExecutorConfiguration.taskExecutor().submit(() -> {
-            LOGGER.info("Configuring {}", workspace);
+        CompletableFuture<File> ret = CompletableFuture.supplyAsync(() -> {
+            // the only walk of workspace's file tree, fingerprint and builders use its results
+            WorkspaceInventory inventory = WorkspaceInventory.scan(workspace.toPath());
+            String fingerprint = getFingerprint(inventory, indexProfile);
+            if (fingerprint != null && isConfigured(workspace) &&
+                    fingerprint.equals(readFingerprint(workspace)) &&
+                    JavacConfig.readManifest(workspace.toPath()) != null) {
+                // pending index builds are still valid and are joined by next index request
+                LOGGER.info("Build files of {} did not change, keeping configuration", workspace);
+                return workspace;
+            }
+            if (isConfigured(workspace)) {
+                // indexes of previous configuration are stale, waiting for cancelled builds to stop, so that they
+                // don't write indexes of new units
+                workspaceService.getWorkspace(workspace.toPath()).cancelIndexing().join();
+            }
+            LOGGER.info("Configuring {} using {} index profile", workspace, indexProfile);
+            boolean configured = false;
             try {
-                if (!MavenBuilder.prepare(workspace.toPath()) &&
-                        !GradleBuilder.prepare(workspace.toPath())) {
-                    DefaultBuilder.prepare(workspace.toPath());
+                if (!MavenBuilder.prepare(workspace.toPath(), indexProfile, inventory) &&
+                        !GradleBuilder.prepare(workspace.toPath(), indexProfile, inventory)) {
+                    DefaultBuilder.prepare(workspace.toPath(), indexProfile, inventory);
                 }
+                configured = true;
             } catch (Exception ex) {
                 LOGGER.warn("Unable to configure {}", workspace, ex);
             }
-            new FileOutputStream(new File(workspace, STAMP_FILE)).close();
+            try {
+                JavacConfig.writeManifest(workspace.toPath(), inventory.getConfigFiles());
+            } catch (IOException ex) {
+                // units are found by scanning workspace then
+                LOGGER.warn("Unable to write manifest of {}", workspace, ex);
+                new File(workspace, JavacConfig.MANIFEST_FILE_NAME).delete();
+            }
+            try {
+                File fingerprintFile = new File(workspace, FINGERPRINT_FILE);
+                if (configured && fingerprint != null) {
+                    // fingerprint is taken before builders run, so that files they generate do not affect it
+                    FileUtils.writeStringToFile(fingerprintFile, fingerprint, StandardCharsets.UTF_8);
+                } else {
+                    // failed configuration is never reused
+                    fingerprintFile.delete();
+                }
+                new FileOutputStream(new File(workspace, STAMP_FILE)).close();
+            } catch (IOException ex) {
+                throw new CompletionException(ex);
+            }
+            // workspace object caches configuration, making sure that next request will see new one
+            workspaceService.invalidate(workspace.toPath());
             LOGGER.info("Configured {}", workspace);
             return workspace;
-        });
+        }, taskExecutorConfiguration.cloneExecutor());
         jobs.put(workspace, ret);
         return ret;
     }
 
+    /**
+     * @param inventory workspace inventory
+     * @param profile   index profile
+     * @return fingerprint of workspace's build files or null if it can't be computed
+     */
+    private static String getFingerprint(WorkspaceInventory inventory, IndexProfile profile) {
+        try {
+            return BuildFingerprint.compute(inventory, profile);
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to compute fingerprint of {}", inventory.getRoot(), ex);
+            return null;
+        }
+    }
+
+    /**
+     * @param workspace workspace root
+     * @return fingerprint of build files workspace was configured from, null if unknown
+     */
+    private static String readFingerprint(File workspace) {
+        File file = new File(workspace, FINGERPRINT_FILE);
+        try {
+            return file.isFile() ? FileUtils.readFileToString(file, StandardCharsets.UTF_8) : null;
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to read {}", file, ex);
+            return null;
+        }
+    }
+
     /**
      * @param workspace workspace root
      * @return true if workspace is already configured
@@ -68,6 +171,15 @@ public class ConfigurationService {
         return new File(workspace, STAMP_FILE).exists();
     }
 
+    /**
+     * Forgets completed configuration job, so next request will configure workspace again
+     *
+     * @param workspace workspace root
+     */
+    void forget(File workspace) {
+        jobs.computeIfPresent(workspace, (key, job) -> job.isDone() ? null : job);
+    }
+
     public void purge() throws Exception {
         // park all
         for (Future<?> future : jobs.values()) {
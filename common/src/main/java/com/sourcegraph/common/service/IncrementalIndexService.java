@@ -0,0 +1,249 @@
+package com.sourcegraph.common.service;
+
+import com.sourcegraph.common.javac.SymbolIndex;
+import com.sourcegraph.common.model.JavacConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Seeds indexes of freshly configured workspace from the nearest already indexed ancestor commit. Units not touched
+ * by the diff between commits inherit ancestor's index as is, everything else (new units, units with modified files or
+ * changed configuration, units depending on them) is indexed from scratch. Only whole units are reused, so that
+ * references to symbols of modified files are never carried over from one revision to another
+ */
+@Service
+public class IncrementalIndexService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IncrementalIndexService.class);
+
+    private static final Pattern COMMIT_ID = Pattern.compile("[0-9a-f]{40}");
+
+    @Autowired
+    private MirrorService mirrorService;
+
+    /**
+     * Indicates if indexes should be seeded from ancestor commits
+     */
+    @Value("${index.incremental:true}")
+    private boolean enabled;
+
+    /**
+     * Maximum number of commits to look for indexed ancestor in
+     */
+    @Value("${index.incremental.depth:1000}")
+    private int depth;
+
+    /**
+     * Seeds indexes of the given workspace, errors are logged and ignored (units are indexed from scratch then)
+     *
+     * @param repo      repository name
+     * @param commit    commit ID
+     * @param workspace workspace root, should be configured
+     */
+    public void seed(String repo, String commit, File workspace) {
+        if (!enabled || !COMMIT_ID.matcher(commit).matches()) {
+            return;
+        }
+        try {
+            Map<String, File> candidates = getCandidates(workspace);
+            String ancestor = mirrorService.findAncestor(repo, commit, candidates.keySet(), depth);
+            if (ancestor == null) {
+                return;
+            }
+            File ancestorWorkspace = candidates.get(ancestor);
+            LOGGER.info("Seeding indexes of {} from {}", workspace, ancestorWorkspace);
+            seed(ancestorWorkspace.toPath(), workspace.toPath(), mirrorService.diff(repo, ancestor, commit));
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Unable to seed indexes of {}", workspace, e);
+        }
+    }
+
+    /**
+     * @param workspace workspace root (.../repo/commit/workspace)
+     * @return commit ID -> workspace root of other configured revisions of the same repository
+     */
+    private static Map<String, File> getCandidates(File workspace) {
+        Map<String, File> ret = new HashMap<>();
+        File[] revisions = workspace.getParentFile().getParentFile().listFiles();
+        if (revisions == null) {
+            return ret;
+        }
+        for (File revision : revisions) {
+            File candidate = new File(revision, workspace.getName());
+            if (COMMIT_ID.matcher(revision.getName()).matches() &&
+                    !candidate.equals(workspace) &&
+                    new File(candidate, JavacConfig.MANIFEST_FILE_NAME).isFile()) {
+                ret.put(revision.getName(), candidate);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Copies indexes of unchanged units
+     *
+     * @param from    workspace root of indexed ancestor
+     * @param to      workspace root to seed
+     * @param changed files changed between revisions, relative to workspace root
+     * @throws IOException if there was an I/O error
+     */
+    private static void seed(Path from, Path to, Set<String> changed) throws IOException {
+        Collection<Path> configFiles = JavacConfig.readManifest(to);
+        if (configFiles == null) {
+            return;
+        }
+        Map<Path, JavacConfig> units = new HashMap<>();
+        for (Path configFile : configFiles) {
+            JavacConfig config = JavacConfig.read(configFile.getParent());
+            if (config != null) {
+                units.put(to.relativize(configFile.getParent()), config);
+            }
+        }
+
+        Set<Path> modified = new HashSet<>();
+        for (Map.Entry<Path, JavacConfig> unit : units.entrySet()) {
+            JavacConfig ancestorConfig = JavacConfig.read(from.resolve(unit.getKey()));
+            if (ancestorConfig == null ||
+                    !from.resolve(unit.getKey()).resolve(SymbolIndex.INDEX_FILE_NAME).toFile().isFile() ||
+                    !new UnitKey(from, ancestorConfig).equals(new UnitKey(to, unit.getValue())) ||
+                    !Collections.disjoint(relativize(to, unit.getValue().files), changed) ||
+                    touches(relativize(to, unit.getValue().classPath), changed) ||
+                    touches(relativize(to, unit.getValue().sources), changed)) {
+                modified.add(unit.getKey());
+            }
+        }
+
+        for (Path unit : units.keySet()) {
+            Path target = to.resolve(unit);
+            if (modified.contains(unit) ||
+                    target.resolve(SymbolIndex.INDEX_FILE_NAME).toFile().exists() ||
+                    dependsOnModified(unit, units, modified, new HashSet<>())) {
+                continue;
+            }
+            Path tmp = Files.createTempFile(target, "index", "tmp");
+            Files.copy(from.resolve(unit).resolve(SymbolIndex.INDEX_FILE_NAME),
+                    tmp,
+                    StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmp, target.resolve(SymbolIndex.INDEX_FILE_NAME), StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.info("Reused index of {}", target);
+        }
+    }
+
+    /**
+     * @param unit     unit to check
+     * @param units    all units
+     * @param modified modified units
+     * @param visited  units visited so far
+     * @return true if unit depends (transitively) on some other modified unit
+     */
+    private static boolean dependsOnModified(Path unit,
+                                             Map<Path, JavacConfig> units,
+                                             Set<Path> modified,
+                                             Set<Path> visited) {
+        visited.add(unit);
+        JavacConfig config = units.get(unit);
+        for (Map.Entry<Path, JavacConfig> other : units.entrySet()) {
+            if (visited.contains(other.getKey()) || !dependsOn(config, other.getValue())) {
+                continue;
+            }
+            if (modified.contains(other.getKey()) || dependsOnModified(other.getKey(), units, modified, visited)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if unit sees classes of other unit, through class path or shared source roots
+     */
+    private static boolean dependsOn(JavacConfig unit, JavacConfig other) {
+        if (other.outputDirectory != null && unit.classPath != null &&
+                unit.classPath.contains(Paths.get(other.outputDirectory).normalize().toString())) {
+            return true;
+        }
+        return unit.sources != null && other.sources != null && !Collections.disjoint(unit.sources, other.sources);
+    }
+
+    /**
+     * @param roots   files or directories relative to workspace root
+     * @param changed files changed between revisions, relative to workspace root
+     * @return true if some of changed files is one of the given files or lies in one of the given directories (jars
+     * and class directories checked into repository, source roots providing files not listed in unit's configuration)
+     */
+    private static boolean touches(Collection<String> roots, Set<String> changed) {
+        for (String root : roots) {
+            String prefix = root + '/';
+            for (String path : changed) {
+                if (path.equals(root) || path.startsWith(prefix)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param root  workspace root
+     * @param paths absolute paths
+     * @return paths relative to workspace root, using forward slashes (as git does)
+     */
+    private static Set<String> relativize(Path root, Collection<String> paths) {
+        if (paths == null) {
+            return new HashSet<>();
+        }
+        return paths.stream().
+                map(path -> root.relativize(Paths.get(path).normalize()).toString().replace(File.separatorChar, '/')).
+                collect(Collectors.toSet());
+    }
+
+    /**
+     * Workspace-independent view of unit configuration, units of two revisions having equal keys are compiled the
+     * same way
+     */
+    private static class UnitKey {
+
+        private Set<String> files;
+        private String fingerprint;
+
+        UnitKey(Path root, JavacConfig config) {
+            files = relativize(root, config.files);
+            fingerprint = config.fingerprint(root);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof UnitKey)) {
+                return false;
+            }
+            UnitKey other = (UnitKey) o;
+            return files.equals(other.files) && fingerprint.equals(other.fingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(files, fingerprint);
+        }
+    }
+}
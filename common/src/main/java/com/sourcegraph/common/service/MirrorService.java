@@ -0,0 +1,330 @@
+package com.sourcegraph.common.service;
+
+import com.sourcegraph.common.config.builder.WorkspaceInventory;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheCheckout;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps single bare mirror per repository and materializes commits from it. Mirror is fetched only when requested
+ * commit is unknown to it (fetch transfers delta only), checkout borrows mirror's object store (git alternates), so
+ * that checkout of a commit costs writing its files only. Sparse checkout writes only files needed for indexing
+ */
+@Service
+public class MirrorService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MirrorService.class);
+
+    /**
+     * Full SHA-1 commit ID, such commits never change and don't need fetch once known
+     */
+    private static final Pattern COMMIT_ID = Pattern.compile("[0-9a-f]{40}");
+
+    /**
+     * Object store directory (relative to git directory)
+     */
+    private static final String OBJECTS = "objects";
+
+    private static final RefSpec[] REF_SPECS = {
+            new RefSpec("+refs/heads/*:refs/heads/*"),
+            new RefSpec("+refs/tags/*:refs/tags/*")
+    };
+
+    /**
+     * Root directory where all mirrors are located
+     */
+    @Value("${mirror:${SGPATH:${user.home}/.sourcegraph}/mirror/java}")
+    private String mirror;
+
+    /**
+     * Remote URL of repository, %s is replaced with repository name (github.com/user/repo)
+     */
+    @Value("${repository.url.pattern:https://%s}")
+    private String urlPattern;
+
+    /**
+     * Indicates that only files needed to configure and index workspace should be checked out
+     */
+    @Value("${checkout.sparse:false}")
+    private boolean sparse;
+
+    /**
+     * repository -> lock, mirror is updated by one thread at a time
+     */
+    private Map<String, Object> locks = new ConcurrentHashMap<>();
+
+    /**
+     * Checks out commit into the given directory, fetching it into mirror if needed. Destination is a non-bare
+     * repository with detached HEAD that reads objects from mirror
+     *
+     * @param repo        repository name (github.com/user/repo)
+     * @param commit      revision
+     * @param destination destination directory, should not exist
+     * @throws IOException     if there was an I/O error
+     * @throws GitAPIException if fetch failed
+     */
+    public void checkout(String repo, String commit, File destination) throws IOException, GitAPIException {
+        ObjectId commitId = update(repo, commit);
+        File objects = new File(getMirror(repo), OBJECTS);
+        try {
+            Git.init().setDirectory(destination).call().close();
+            File gitDir = new File(destination, Constants.DOT_GIT);
+            FileUtils.writeStringToFile(new File(gitDir, OBJECTS + "/info/alternates"),
+                    objects.getAbsolutePath() + '\n',
+                    StandardCharsets.UTF_8);
+            try (Repository repository = new FileRepositoryBuilder().setGitDir(gitDir).build();
+                 RevWalk walk = new RevWalk(repository)) {
+                RevCommit revCommit = walk.parseCommit(commitId);
+                if (sparse) {
+                    checkoutSparse(repository, revCommit.getTree());
+                } else {
+                    DirCacheCheckout checkout = new DirCacheCheckout(repository,
+                            repository.lockDirCache(),
+                            revCommit.getTree());
+                    checkout.setFailOnConflict(true);
+                    checkout.checkout();
+                }
+                RefUpdate head = repository.updateRef(Constants.HEAD, true);
+                head.setNewObjectId(commitId);
+                head.forceUpdate();
+            }
+        } catch (IOException | GitAPIException | RuntimeException e) {
+            FileUtils.deleteQuietly(destination);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes only files needed to configure and index workspace (see {@link SparseFilter}), index of repository
+     * lists written files only
+     *
+     * @param repository destination repository
+     * @param tree       tree to check out
+     * @throws IOException if there was an I/O error
+     */
+    private static void checkoutSparse(Repository repository, RevTree tree) throws IOException {
+        DirCache dirCache = repository.lockDirCache();
+        try (TreeWalk walk = new TreeWalk(repository)) {
+            DirCacheBuilder builder = dirCache.builder();
+            walk.addTree(tree);
+            walk.setRecursive(true);
+            walk.setFilter(new SparseFilter());
+            while (walk.next()) {
+                FileMode mode = walk.getFileMode(0);
+                if (mode != FileMode.REGULAR_FILE && mode != FileMode.EXECUTABLE_FILE) {
+                    // symbolic links and submodules
+                    continue;
+                }
+                File file = new File(repository.getWorkTree(), walk.getPathString());
+                FileUtils.forceMkdir(file.getParentFile());
+                try (OutputStream out = new FileOutputStream(file)) {
+                    repository.open(walk.getObjectId(0), Constants.OBJ_BLOB).copyTo(out);
+                }
+                if (mode == FileMode.EXECUTABLE_FILE) {
+                    file.setExecutable(true);
+                }
+                DirCacheEntry entry = new DirCacheEntry(walk.getRawPath());
+                entry.setFileMode(mode);
+                entry.setObjectId(walk.getObjectId(0));
+                entry.setLength(file.length());
+                entry.setLastModified(file.lastModified());
+                builder.add(entry);
+            }
+            builder.commit();
+        } finally {
+            dirCache.unlock();
+        }
+    }
+
+    /**
+     * Walks history of the given commit looking for the nearest of candidates
+     *
+     * @param repo       repository name
+     * @param commit     commit ID, should be known to mirror
+     * @param candidates commit IDs to look for
+     * @param depth      maximum number of commits to walk
+     * @return first commit (other than the given one) found among candidates or null
+     * @throws IOException if there was an I/O error
+     */
+    public String findAncestor(String repo, String commit, Collection<String> candidates, int depth)
+            throws IOException {
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        try (Repository repository = openMirror(repo);
+             RevWalk walk = new RevWalk(repository)) {
+            ObjectId commitId = resolve(repository, commit);
+            if (commitId == null) {
+                return null;
+            }
+            walk.markStart(walk.parseCommit(commitId));
+            int count = 0;
+            for (RevCommit revCommit : walk) {
+                if (count++ > depth) {
+                    break;
+                }
+                String name = revCommit.name();
+                if (!revCommit.equals(commitId) && candidates.contains(name)) {
+                    return name;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @param repo repository name
+     * @param from commit ID, should be known to mirror
+     * @param to   commit ID, should be known to mirror
+     * @return paths (relative to repository root) of files that were added, modified or removed between commits
+     * @throws IOException if there was an I/O error or commit wasn't found
+     */
+    public Set<String> diff(String repo, String from, String to) throws IOException {
+        try (Repository repository = openMirror(repo);
+             RevWalk walk = new RevWalk(repository);
+             TreeWalk treeWalk = new TreeWalk(repository)) {
+            treeWalk.addTree(walk.parseCommit(repository.resolve(from)).getTree());
+            treeWalk.addTree(walk.parseCommit(repository.resolve(to)).getTree());
+            treeWalk.setRecursive(true);
+            treeWalk.setFilter(TreeFilter.ANY_DIFF);
+            Set<String> ret = new HashSet<>();
+            while (treeWalk.next()) {
+                ret.add(treeWalk.getPathString());
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Makes sure that mirror contains given commit, creates and fetches mirror if needed
+     *
+     * @param repo   repository name
+     * @param commit revision
+     * @return resolved commit ID
+     * @throws IOException     if there was an I/O error or commit wasn't found
+     * @throws GitAPIException if fetch failed
+     */
+    private ObjectId update(String repo, String commit) throws IOException, GitAPIException {
+        synchronized (locks.computeIfAbsent(repo, key -> new Object())) {
+            File dir = getMirror(repo);
+            if (!dir.isDirectory()) {
+                LOGGER.info("Creating mirror of {} in {}", repo, dir);
+                Git.init().setBare(true).setDirectory(dir).call().close();
+            }
+            try (Repository repository = openMirror(repo)) {
+                // branch names and abbreviated IDs may point to other commits after fetch
+                ObjectId ret = COMMIT_ID.matcher(commit).matches() ? resolve(repository, commit) : null;
+                if (ret == null) {
+                    String url = String.format(urlPattern, repo);
+                    LOGGER.info("Fetching {} into {}", url, dir);
+                    new Git(repository).fetch().
+                            setRemote(url).
+                            setRefSpecs(REF_SPECS).
+                            setRemoveDeletedRefs(true).
+                            call();
+                    ret = resolve(repository, commit);
+                }
+                if (ret == null) {
+                    throw new IOException("Unable to find " + commit + " in " + repo);
+                }
+                return ret;
+            }
+        }
+    }
+
+    /**
+     * @param repository repository
+     * @param commit     revision
+     * @return ID of commit or null if commit is unknown
+     */
+    private static ObjectId resolve(Repository repository, String commit) throws IOException {
+        try {
+            ObjectId ret = repository.resolve(commit + "^{commit}");
+            return ret == null || !repository.hasObject(ret) ? null : ret;
+        } catch (MissingObjectException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param repo repository name
+     * @return mirror repository
+     * @throws IOException if there was an I/O error
+     */
+    private Repository openMirror(String repo) throws IOException {
+        return new FileRepositoryBuilder().setGitDir(getMirror(repo)).setBare().build();
+    }
+
+    /**
+     * @param repo repository name
+     * @return mirror directory of the given repository
+     */
+    private File getMirror(String repo) {
+        return new File(mirror, repo + Constants.DOT_GIT_EXT);
+    }
+
+    /**
+     * Selects files needed by builders and indexer: Java sources, Maven and Gradle descriptors, Gradle wrappers,
+     * build scripts (buildSrc) and local jars that may be referenced as dependencies
+     */
+    private static class SparseFilter extends TreeFilter {
+
+        private static final String BUILD_SRC = "buildSrc/";
+
+        @Override
+        public boolean include(TreeWalk walker) {
+            if (walker.isSubtree()) {
+                return true;
+            }
+            String path = walker.getPathString();
+            if (path.startsWith(BUILD_SRC) || path.contains('/' + BUILD_SRC)) {
+                return true;
+            }
+            String name = path.substring(path.lastIndexOf('/') + 1);
+            return name.endsWith(".java") || name.endsWith(".jar") || WorkspaceInventory.isBuildFile(name);
+        }
+
+        @Override
+        public boolean shouldBeRecursive() {
+            return true;
+        }
+
+        @Override
+        public TreeFilter clone() {
+            return this;
+        }
+    }
+}
@@ -1,12 +1,13 @@
 package com.sourcegraph.common.service;
 
 import com.sourcegraph.common.configuration.TaskExecutorConfiguration;
+import com.sourcegraph.common.javac.IndexOrder;
+import com.sourcegraph.common.model.IndexProfile;
+import com.sourcegraph.common.model.RepoRev;
+import com.sourcegraph.common.model.WorkspaceStatus;
+import com.sourcegraph.common.model.WorkspaceStatus.Phase;
+import com.sourcegraph.common.util.TaskPriority;
 import org.apache.commons.io.FileUtils;
-import org.eclipse.jgit.api.CloneCommand;
-import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.api.ResetCommand;
-import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -15,10 +16,16 @@ import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 /**
  * This service manages repositories (clones, configures them)
@@ -28,12 +35,35 @@ public class RepositoryService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(RepositoryService.class);
 
+    /**
+     * Number of locks workspaces are spread over
+     */
+    private static final int LOCK_STRIPES = 64;
+
     @Autowired
     private ConfigurationService configurationService;
 
     @Autowired
     private TaskExecutorConfiguration taskExecutorConfiguration;
 
+    @Autowired
+    private AdmissionControl admissionControl;
+
+    @Autowired
+    private WorkspaceJanitor workspaceJanitor;
+
+    @Autowired
+    private SymbolService symbolService;
+
+    @Autowired
+    private StatusService statusService;
+
+    @Autowired
+    private MirrorService mirrorService;
+
+    @Autowired
+    private IncrementalIndexService incrementalIndexService;
+
     /**
      * Root directory where all repositories are located
      */
@@ -46,18 +76,43 @@ public class RepositoryService {
     @Value("${workspace.get.timeout:250}")
     private long timeout;
 
+    /**
+     * Indicates if workspace should be indexed in background right after configuration
+     */
+    @Value("${index.eager:true}")
+    private boolean eagerIndex;
+
+    /**
+     * Order to index units of freshly configured workspace in (size, access)
+     */
+    @Value("${index.eager.order:size}")
+    private String eagerIndexOrder;
+
+    private IndexOrder indexOrder;
+
     /**
      * Tracks all completed and pending jobs to clone and configure repository
      */
-    private Map<File, Future<File>> jobs = new ConcurrentHashMap<>();
+    private Map<File, CompletableFuture<File>> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * Tracks background index builds started after configuration
+     */
+    private Map<File, CompletableFuture<Void>> indexJobs = new ConcurrentHashMap<>();
+
+    /**
+     * Workspace locks, job of workspace is never started while workspace is being evicted
+     */
+    private Object[] locks = Stream.generate(Object::new).limit(LOCK_STRIPES).toArray();
 
     /**
      * @param repo   repository name (github.com/user/repo)
      * @param commit revision
      * @return directory that contains cloned repository, cloning and configuring happen asynchronously
+     * @throws ServiceBusyException if there are too many pending jobs
      */
     @Async
-    public Future<File> getRepository(String repo, String commit) {
+    public CompletableFuture<File> getRepository(String repo, String commit) throws ServiceBusyException {
         return getRepository(repo, commit, false);
     }
 
@@ -66,20 +121,200 @@ public class RepositoryService {
      * @param commit revision
      * @param update indicates if we should force update
      * @return directory that contains cloned repository, cloning and configuring happen asynchronously
+     * @throws ServiceBusyException if there are too many pending jobs
+     */
+    @Async
+    public CompletableFuture<File> getRepository(String repo, String commit, boolean update)
+            throws ServiceBusyException {
+        return getRepository(repo, commit, update, null);
+    }
+
+    /**
+     * @param repo    repository name (github.com/user/repo)
+     * @param commit  revision
+     * @param update  indicates if we should force update
+     * @param profile index profile to configure workspace with, null means default one
+     * @return directory that contains cloned repository, cloning and configuring happen asynchronously
+     * @throws ServiceBusyException if there are too many pending jobs
      */
     @Async
-    public Future<File> getRepository(String repo, String commit, boolean update) {
-        File workspace = Paths.get(this.workspace, repo, commit, "workspace").toFile();
-        Future<File> current = !update ? jobs.get(workspace) : null;
+    public CompletableFuture<File> getRepository(String repo, String commit, boolean update, IndexProfile profile)
+            throws ServiceBusyException {
+        File workspace = getWorkspaceRoot(repo, commit);
+        workspaceJanitor.touch(workspace);
+        synchronized (getLock(workspace)) {
+            return submit(workspace, repo, commit, update, profile);
+        }
+    }
+
+    /**
+     * Starts job preparing workspace unless there is one already
+     *
+     * @param workspace workspace root
+     * @param repo      repository name (github.com/user/repo)
+     * @param commit    revision
+     * @param update    indicates if we should force update
+     * @param profile   index profile to configure workspace with, null means default one
+     * @return directory that contains cloned repository, cloning and configuring happen asynchronously
+     * @throws ServiceBusyException if there are too many pending jobs
+     */
+    private CompletableFuture<File> submit(File workspace,
+                                           String repo,
+                                           String commit,
+                                           boolean update,
+                                           IndexProfile profile) throws ServiceBusyException {
+        CompletableFuture<File> current = !update ? jobs.get(workspace) : null;
         if (current != null) {
             return current;
         }
-        Future<File> future = taskExecutorConfiguration.taskExecutor().
-                submit(new PrepareRepository(workspace, repo, commit, update));
+        RepoRev repoRev = new RepoRev(repo, commit);
+        statusService.setPhase(repoRev, Phase.QUEUED);
+        // configuration is chained instead of being awaited by clone task, clone threads are not blocked meanwhile
+        CompletableFuture<File> future;
+        try {
+            future = admissionControl.submit(repo, () -> CompletableFuture.supplyAsync(
+                    new PrepareRepository(workspace, repo, commit, update),
+                    taskExecutorConfiguration.cloneExecutor()).
+                    thenCompose(configure -> configure ? configure(repoRev, workspace, update, profile) :
+                            CompletableFuture.completedFuture(workspace)));
+        } catch (ServiceBusyException e) {
+            statusService.setFailed(repoRev, e.getMessage());
+            throw e;
+        }
+        future.whenComplete((ignore, ex) -> {
+            if (ex != null) {
+                statusService.setFailed(repoRev, (ex instanceof CompletionException ? ex.getCause() : ex).
+                        getMessage());
+            }
+        });
         jobs.put(workspace, future);
         return future;
     }
 
+    /**
+     * @param repo   repository
+     * @param commit revision
+     * @return preparation progress of the given workspace
+     */
+    public WorkspaceStatus getStatus(String repo, String commit) {
+        return statusService.getStatus(new RepoRev(repo, commit), getWorkspaceRoot(repo, commit));
+    }
+
+    /**
+     * Subscribes to workspace progress notifications
+     *
+     * @param repo     repository
+     * @param commit   revision
+     * @param listener returns false to unsubscribe, notifications stop when workspace is prepared
+     */
+    public void subscribe(String repo, String commit, Predicate<WorkspaceStatus> listener) {
+        statusService.subscribe(new RepoRev(repo, commit), getWorkspaceRoot(repo, commit), listener);
+    }
+
+    /**
+     * @param repo   repository
+     * @param commit revision
+     * @return workspace root directory of the given revision
+     */
+    private File getWorkspaceRoot(String repo, String commit) {
+        return Paths.get(this.workspace, repo, commit, "workspace").toFile();
+    }
+
+    /**
+     * @param workspace workspace root directory
+     * @return repository and revision of the given workspace
+     */
+    private RepoRev getRepoRev(File workspace) {
+        Path commitDir = workspace.toPath().getParent();
+        Path repo = Paths.get(this.workspace).relativize(commitDir.getParent());
+        return new RepoRev(repo.toString().replace(File.separatorChar, '/'), commitDir.getFileName().toString());
+    }
+
+    /**
+     * @param repoRev   repository and revision
+     * @param workspace workspace root
+     * @param update    indicates if we should force configuration
+     * @param profile   index profile, null means default one
+     * @return workspace root once configured, configuration errors are logged and ignored
+     */
+    private CompletableFuture<File> configure(RepoRev repoRev, File workspace, boolean update, IndexProfile profile) {
+        statusService.setPhase(repoRev, Phase.CONFIGURING);
+        return configurationService.configure(workspace, update, profile).
+                thenApply(configured -> {
+                    if (!update) {
+                        // fresh workspace may inherit indexes of previously indexed revision
+                        incrementalIndexService.seed(repoRev.getRepo(), repoRev.getCommit(), configured);
+                    }
+                    return index(repoRev, configured);
+                }).
+                exceptionally(ex -> {
+                    LOGGER.warn("Failed to configure workspace {}", workspace, ex);
+                    // workspace is still served, but its preparation is over
+                    statusService.setFailed(repoRev, "Unable to configure " + repoRev.getRepo() + "@" +
+                            repoRev.getCommit());
+                    return workspace;
+                });
+    }
+
+    /**
+     * Starts background indexing of freshly configured workspace (if enabled), does not wait for it
+     *
+     * @param repoRev   repository and revision
+     * @param workspace workspace root
+     * @return workspace root
+     */
+    private File index(RepoRev repoRev, File workspace) {
+        if (!eagerIndex) {
+            statusService.setPhase(repoRev, Phase.READY);
+        } else {
+            statusService.setPhase(repoRev, Phase.INDEXING);
+            LOGGER.info("Indexing {} in background", workspace);
+            CompletableFuture<Void> job = symbolService.computeIndexes(workspace.toPath(),
+                    TaskPriority.BACKGROUND,
+                    indexOrder);
+            indexJobs.put(workspace, job);
+            job.whenComplete((ignore, ex) -> {
+                // job is not tracked anymore if it was superseded by update, cancelled job (workspace evicted) does
+                // not make workspace ready
+                if (indexJobs.remove(workspace, job) && ex == null) {
+                    statusService.setPhase(repoRev, Phase.READY);
+                    LOGGER.info("Indexed {}", workspace);
+                }
+            });
+        }
+        return workspace;
+    }
+
+    /**
+     * @param workspace workspace root
+     * @return lock that is held while job of the given workspace is looked up or started, holder may forget
+     * workspace and remove its files without racing with requests
+     */
+    Object getLock(File workspace) {
+        return locks[Math.floorMod(workspace.hashCode(), LOCK_STRIPES)];
+    }
+
+    /**
+     * Forgets completed job for the given workspace, so next request will prepare workspace again. Caller should
+     * hold workspace lock (see {@link #getLock(File)}) if it's going to modify workspace
+     *
+     * @param workspace workspace root
+     * @return false if workspace is being prepared
+     */
+    boolean forget(File workspace) {
+        CompletableFuture<File> job = jobs.get(workspace);
+        if (job != null) {
+            if (!job.isDone()) {
+                return false;
+            }
+            jobs.remove(workspace, job);
+        }
+        configurationService.forget(workspace);
+        // status of workspace is derived from its files from now on
+        statusService.forget(getRepoRev(workspace));
+        return true;
+    }
+
     /**
      * Initializes root directory
      */
@@ -94,6 +329,7 @@ public class RepositoryService {
             throw new RuntimeException(workspace + " does not denote a directory");
         }
         LOGGER.info("Using workspace {}", root.getAbsolutePath());
+        indexOrder = IndexOrder.valueOf(eagerIndexOrder.trim().toUpperCase());
     }
 
     /**
@@ -106,11 +342,35 @@ public class RepositoryService {
         for (Future<?> future : jobs.values()) {
             future.get();
         }
+        // no point in waiting for indexes that are about to be removed
+        cancelIndexing();
         jobs.clear();
+        for (Future<?> future : indexJobs.values()) {
+            future.get();
+        }
+        indexJobs.clear();
+        statusService.purge();
         FileUtils.cleanDirectory(new File(workspace));
         configurationService.purge();
     }
 
+    /**
+     * Cancels index builds on shutdown, so that pool threads are released as soon as possible
+     */
+    @PreDestroy
+    private void shutdown() {
+        cancelIndexing();
+    }
+
+    /**
+     * Cancels index builds in all known workspaces
+     */
+    private void cancelIndexing() {
+        for (File workspace : jobs.keySet()) {
+            symbolService.cancelIndexing(workspace.toPath());
+        }
+    }
+
     /**
      * Waits for N milliseconds to acquire workspace object
      *
@@ -119,9 +379,10 @@ public class RepositoryService {
      * @return workspace object if ready
      * @throws WorkspaceBeingPreparedException if workspace object is being prepared
      * @throws WorkspaceException              if workspace configuration error occurred
+     * @throws ServiceBusyException            if workspace is not prepared and there are too many pending jobs
      */
     public File getWorkspace(String repo, String commit)
-            throws WorkspaceBeingPreparedException, WorkspaceException {
+            throws WorkspaceBeingPreparedException, WorkspaceException, ServiceBusyException {
         Future<File> workspaceRoot = getRepository(repo, commit);
         try {
             return workspaceRoot.get(timeout, TimeUnit.MILLISECONDS);
@@ -133,11 +394,45 @@ public class RepositoryService {
         }
     }
 
+    /**
+     * Does not block, future completes with workspace root when it's ready
+     *
+     * @param repo   repository
+     * @param commit revision
+     * @return future completed with workspace root, with {@link WorkspaceBeingPreparedException} if workspace is not
+     * ready in N milliseconds, with {@link WorkspaceException} if workspace configuration error occurred or with
+     * {@link ServiceBusyException} if workspace is not prepared and there are too many pending jobs
+     */
+    public CompletableFuture<File> getWorkspaceAsync(String repo, String commit) {
+        CompletableFuture<File> ret = new CompletableFuture<>();
+        CompletableFuture<File> repository;
+        try {
+            repository = getRepository(repo, commit);
+        } catch (ServiceBusyException e) {
+            ret.completeExceptionally(e);
+            return ret;
+        }
+        repository.whenComplete((workspaceRoot, ex) -> {
+            if (ex == null) {
+                ret.complete(workspaceRoot);
+                return;
+            }
+            LOGGER.error("An error occurred while fetching workspace for {}@{}", repo, commit, ex);
+            ret.completeExceptionally(new WorkspaceException(ex instanceof CompletionException ? ex.getCause() : ex));
+        });
+        if (!ret.isDone()) {
+            taskExecutorConfiguration.scheduledExecutor().schedule(
+                    () -> ret.completeExceptionally(new WorkspaceBeingPreparedException()),
+                    timeout,
+                    TimeUnit.MILLISECONDS);
+        }
+        return ret;
+    }
 
     /**
-     * Repository preparation task (clone + configure)
+     * Repository preparation task (clone), tells if workspace should be configured
      */
-    private class PrepareRepository implements Callable<File> {
+    private class PrepareRepository implements Supplier<Boolean> {
 
         /**
          * Root directory to clone to
@@ -156,90 +451,53 @@ public class RepositoryService {
 
         private boolean update;
 
+        private RepoRev repoRev;
+
         private PrepareRepository(File workspace, String repo, String commit, boolean update) {
             this.workspace = workspace;
             this.repo = repo;
             this.commit = commit;
             this.update = update;
+            this.repoRev = new RepoRev(repo, commit);
         }
 
         @Override
-        public File call() throws Exception {
+        public Boolean get() {
             // if workspace already exists and is directory - it's supposed to be ready
             if (workspace.isDirectory()) {
-                if (update) {
-                    try {
-                        return configurationService.configure(workspace, true).get();
-                    } catch (InterruptedException | ExecutionException e) {
-                        LOGGER.warn("Failed to configure workspace {}", workspace, e);
+                // stripped workspace serves queries from indexes, but has no sources to be configured again
+                if (!update || !WorkspaceJanitor.isStripped(workspace)) {
+                    if (!update) {
+                        statusService.setPhase(repoRev, Phase.READY);
                     }
+                    return update;
+                }
+                LOGGER.info("Restoring stripped workspace {}", workspace);
+                try {
+                    FileUtils.deleteDirectory(workspace);
+                } catch (IOException e) {
+                    throw new CompletionException(new WorkspaceException("Unable to restore " + workspace, e));
                 }
-                return workspace;
             }
             if (workspace.isFile()) {
-                throw new WorkspaceException(workspace + " does not denote a directory");
+                throw new CompletionException(new WorkspaceException(workspace + " does not denote a directory"));
             }
             // making parent directories
             if (!workspace.getParentFile().exists() && !workspace.getParentFile().mkdirs()) {
-                throw new WorkspaceException("Unable to create parent directory " + workspace.getParent());
-            }
-            boolean success = true;
-            LOGGER.info("Cloning {}@{} into {}", repo, commit, workspace);
-            if (!clone("https://" + repo, workspace) || !reset(workspace, commit)) {
-                LOGGER.warn("Unable to clone {}@{} into {}", repo, commit, workspace);
-                success = false;
-            }
-            LOGGER.info("Cloned {}@{} into {}", repo, commit, workspace);
-            if (success) {
-                try {
-                    return configurationService.configure(workspace).get();
-                } catch (InterruptedException | ExecutionException e) {
-                    LOGGER.warn("Failed to configure workspace {}", workspace, e);
-                }
+                throw new CompletionException(
+                        new WorkspaceException("Unable to create parent directory " + workspace.getParent()));
             }
-            return workspace;
-        }
-
-        /**
-         * Clones repository
-         *
-         * @param uri         clone URL
-         * @param destination destination directory
-         * @return operation status
-         */
-        private boolean clone(String uri, File destination) {
-            CloneCommand clone = Git.cloneRepository();
+            LOGGER.info("Checking out {}@{} into {}", repo, commit, workspace);
+            statusService.setPhase(repoRev, Phase.CLONING);
             try {
-                clone.setURI(uri).setDirectory(destination);
-                clone.call().getRepository().close();
-                return true;
-            } catch (Exception e) {
-                LOGGER.error("An error occurred while cloning {} into {}", uri, destination, e);
-                return false;
-            }
-        }
-
-        /**
-         * Resets local copy to specific revision
-         *
-         * @param repoDir local repo directory
-         * @param commit  revision to reset to
-         * @return operation status
-         */
-        private boolean reset(File repoDir, String commit) {
-            FileRepositoryBuilder builder = new FileRepositoryBuilder();
-            try (Repository repository = builder.setGitDir(new File(repoDir, ".git")).
-                    readEnvironment(). // scan environment GIT_* variables
-                    findGitDir(). // scan up the file system tree
-                    build()) {
-                Git git = new Git(repository);
-                ResetCommand reset = git.reset();
-                reset.setRef(commit).setMode(ResetCommand.ResetType.HARD).call();
-                return true;
+                mirrorService.checkout(repo, commit, workspace);
             } catch (Exception e) {
-                LOGGER.error("An error occurred while resetting {} to {}", repoDir, commit, e);
+                LOGGER.error("Unable to check out {}@{} into {}", repo, commit, workspace, e);
+                statusService.setFailed(repoRev, "Unable to clone " + repo + "@" + commit);
                 return false;
             }
+            LOGGER.info("Checked out {}@{} into {}", repo, commit, workspace);
+            return true;
         }
     }
 }
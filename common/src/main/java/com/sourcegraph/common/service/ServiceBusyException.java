@@ -0,0 +1,25 @@
+package com.sourcegraph.common.service;
+
+/**
+ * Indicates that node is saturated and request should be retried later
+ */
+public class ServiceBusyException extends Exception {
+
+    /**
+     * Number of seconds client should wait before retrying
+     */
+    private long retryAfter;
+
+    public ServiceBusyException(String message, long retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @return number of seconds client should wait before retrying
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+
+}
@@ -0,0 +1,280 @@
+package com.sourcegraph.common.service;
+
+import com.sourcegraph.common.configuration.TaskExecutorConfiguration;
+import com.sourcegraph.common.javac.SymbolIndex;
+import com.sourcegraph.common.javac.WorkspaceService;
+import com.sourcegraph.common.model.RepoRev;
+import com.sourcegraph.common.model.WorkspaceStatus;
+import com.sourcegraph.common.model.WorkspaceStatus.Phase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Tracks preparation progress of workspaces and notifies subscribers about it
+ */
+@Service
+public class StatusService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StatusService.class);
+
+    @Autowired
+    private WorkspaceService workspaceService;
+
+    @Autowired
+    private ConfigurationService configurationService;
+
+    @Autowired
+    private TaskExecutorConfiguration taskExecutorConfiguration;
+
+    /**
+     * Notify subscribers about progress every X milliseconds (if there is any)
+     */
+    @Value("${status.notify.interval:1000}")
+    private long notifyInterval;
+
+    /**
+     * repo@commit -> preparation progress
+     */
+    private Map<RepoRev, Progress> progress = new ConcurrentHashMap<>();
+
+    private Collection<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Schedules notifications, slow subscribers delay only other notifications but not timeouts
+     */
+    @PostConstruct
+    private void init() {
+        taskExecutorConfiguration.notifyExecutor().scheduleWithFixedDelay(this::notifySubscribers,
+                notifyInterval,
+                notifyInterval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records phase change
+     *
+     * @param repoRev repository and revision
+     * @param phase   new phase
+     */
+    void setPhase(RepoRev repoRev, Phase phase) {
+        Progress p = progress.computeIfAbsent(repoRev, key -> new Progress());
+        synchronized (p) {
+            p.phase = phase;
+            p.error = null;
+            if (phase == Phase.INDEXING) {
+                p.indexingStarted = System.currentTimeMillis();
+                p.filesDoneAtStart = -1;
+            }
+        }
+    }
+
+    /**
+     * Records failure
+     *
+     * @param repoRev repository and revision
+     * @param error   error message
+     */
+    void setFailed(RepoRev repoRev, String error) {
+        Progress p = progress.computeIfAbsent(repoRev, key -> new Progress());
+        synchronized (p) {
+            p.phase = Phase.FAILED;
+            p.error = error;
+        }
+    }
+
+    /**
+     * Forgets progress of workspace that is about to be evicted
+     *
+     * @param repoRev repository and revision
+     */
+    void forget(RepoRev repoRev) {
+        progress.remove(repoRev);
+    }
+
+    /**
+     * Forgets progress of all workspaces
+     */
+    void purge() {
+        progress.clear();
+    }
+
+    /**
+     * @param repoRev   repository and revision
+     * @param workspace workspace root
+     * @return current status of workspace
+     */
+    public WorkspaceStatus getStatus(RepoRev repoRev, File workspace) {
+        WorkspaceStatus ret = new WorkspaceStatus();
+        ret.setRepo(repoRev.getRepo());
+        ret.setCommit(repoRev.getCommit());
+        Progress p = progress.get(repoRev);
+        if (p == null) {
+            // prepared before restart or not requested at all
+            ret.setPhase(workspace.isDirectory() && configurationService.isConfigured(workspace) ?
+                    Phase.READY :
+                    Phase.NONE);
+            return ret;
+        }
+        long indexingStarted;
+        synchronized (p) {
+            ret.setPhase(p.phase);
+            ret.setError(p.error);
+            indexingStarted = p.indexingStarted;
+        }
+        if (ret.getPhase() == Phase.INDEXING || ret.getPhase() == Phase.READY) {
+            try {
+                countUnits(workspace, ret);
+            } catch (Exception e) {
+                LOGGER.debug("Unable to count indexed units of {}", workspace, e);
+                return ret;
+            }
+        }
+        if (ret.getPhase() == Phase.INDEXING) {
+            int filesDoneAtStart;
+            synchronized (p) {
+                if (p.filesDoneAtStart < 0) {
+                    p.filesDoneAtStart = ret.getFilesDone();
+                }
+                filesDoneAtStart = p.filesDoneAtStart;
+            }
+            long elapsed = System.currentTimeMillis() - indexingStarted;
+            int done = ret.getFilesDone() - filesDoneAtStart;
+            if (done > 0) {
+                long left = ret.getFilesTotal() - ret.getFilesDone();
+                ret.setEta(TimeUnit.MILLISECONDS.toSeconds(left * elapsed / done));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Subscribes to workspace progress notifications. Listener is notified immediately and then when progress is
+     * made, until workspace is prepared or listener asks to stop
+     *
+     * @param repoRev   repository and revision
+     * @param workspace workspace root
+     * @param listener  returns false to unsubscribe
+     */
+    public void subscribe(RepoRev repoRev, File workspace, Predicate<WorkspaceStatus> listener) {
+        Subscription subscription = new Subscription(repoRev, workspace, listener);
+        if (publish(subscription)) {
+            subscriptions.add(subscription);
+        }
+    }
+
+    /**
+     * Notifies subscribers whose workspaces made progress, drops completed subscriptions
+     */
+    private void notifySubscribers() {
+        for (Subscription subscription : subscriptions) {
+            try {
+                if (!publish(subscription)) {
+                    subscriptions.remove(subscription);
+                }
+            } catch (Exception e) {
+                LOGGER.warn("Unable to notify subscriber about {}@{}",
+                        subscription.repoRev.getRepo(),
+                        subscription.repoRev.getCommit(),
+                        e);
+                subscriptions.remove(subscription);
+            }
+        }
+    }
+
+    /**
+     * @param subscription subscription to notify
+     * @return true if subscription should be kept
+     */
+    private boolean publish(Subscription subscription) {
+        WorkspaceStatus status = getStatus(subscription.repoRev, subscription.workspace);
+        if (!status.sameProgress(subscription.last)) {
+            subscription.last = status;
+            if (!subscription.listener.test(status)) {
+                return false;
+            }
+        }
+        return !status.isDone();
+    }
+
+    /**
+     * Fills units and files counters
+     *
+     * @param workspace workspace root
+     * @param status    status to fill
+     */
+    private void countUnits(File workspace, WorkspaceStatus status) throws Exception {
+        int unitsTotal = 0;
+        int unitsDone = 0;
+        int filesTotal = 0;
+        int filesDone = 0;
+        for (SymbolIndex index : workspaceService.getWorkspace(workspace.toPath()).getIndexes()) {
+            unitsTotal++;
+            filesTotal += index.getUnitSize();
+            if (index.isIndexed()) {
+                unitsDone++;
+                filesDone += index.getUnitSize();
+            } else {
+                filesDone += index.getFilesIndexed();
+            }
+        }
+        status.setUnitsTotal(unitsTotal);
+        status.setUnitsDone(unitsDone);
+        status.setFilesTotal(filesTotal);
+        status.setFilesDone(filesDone);
+    }
+
+    /**
+     * Preparation progress of a single workspace
+     */
+    private static class Progress {
+
+        private Phase phase;
+
+        private String error;
+
+        /**
+         * Time indexing phase started
+         */
+        private long indexingStarted;
+
+        /**
+         * Number of files indexed before indexing phase started (-1 if not computed yet), used to estimate rate
+         */
+        private int filesDoneAtStart;
+    }
+
+    /**
+     * Progress notifications subscription
+     */
+    private static class Subscription {
+
+        private RepoRev repoRev;
+
+        private File workspace;
+
+        private Predicate<WorkspaceStatus> listener;
+
+        /**
+         * Last status listener was notified with
+         */
+        private WorkspaceStatus last;
+
+        Subscription(RepoRev repoRev, File workspace, Predicate<WorkspaceStatus> listener) {
+            this.repoRev = repoRev;
+            this.workspace = workspace;
+            this.listener = listener;
+        }
+    }
+}
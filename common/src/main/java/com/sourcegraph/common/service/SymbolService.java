@@ -1,11 +1,13 @@
 package com.sourcegraph.common.service;
 
 import com.sourcegraph.common.configuration.TaskExecutorConfiguration;
+import com.sourcegraph.common.javac.IndexOrder;
 import com.sourcegraph.common.javac.SymbolIndex;
 import com.sourcegraph.common.javac.SymbolResultSet;
 import com.sourcegraph.common.javac.Workspace;
 import com.sourcegraph.common.javac.WorkspaceService;
 import com.sourcegraph.common.model.*;
+import com.sourcegraph.common.util.TaskPriority;
 import org.apache.commons.csv.CSVRecord;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -20,6 +22,7 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Provides foundSymbol resolution methods
@@ -41,6 +44,47 @@ public class SymbolService {
     @Autowired
     private TaskExecutorConfiguration taskExecutorConfiguration;
 
+    /**
+     * Starts building all indexes in the given workspace, does not block
+     *
+     * @param root     workspace root
+     * @param priority build priority
+     * @return future completed when all indexes are built or when they can't be built, errors (cancelled builds
+     * included) are left to be reported by the queries
+     */
+    public CompletableFuture<Void> computeIndexes(Path root, TaskPriority priority) {
+        return computeIndexes(root, priority, null).exceptionally(ex -> null);
+    }
+
+    /**
+     * Starts building all indexes in the given workspace in the given order, does not block
+     *
+     * @param root     workspace root
+     * @param priority build priority
+     * @param order    order to submit builds in, null means no specific order
+     * @return future completed when all indexes are built or when they can't be built, completed exceptionally if
+     * some builds were cancelled
+     */
+    public CompletableFuture<Void> computeIndexes(Path root, TaskPriority priority, IndexOrder order) {
+        try {
+            return workspaceService.getWorkspace(root).
+                    computeIndexes(taskExecutorConfiguration.indexExecutor(), priority, order);
+        } catch (IOException | WorkspaceBeingPreparedException e) {
+            LOGGER.warn("Unable to compute indexes in {}", root, e);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Cancels all pending index builds in the given workspace, does not block
+     *
+     * @param root workspace root
+     * @return future completed when cancelled builds stop
+     */
+    public CompletableFuture<Void> cancelIndexing(Path root) {
+        return workspaceService.getWorkspace(root).cancelIndexing();
+    }
+
     /**
      * @param root     workspace root
      * @param position symbol position
@@ -124,13 +168,15 @@ public class SymbolService {
     /**
      * @param position symbol's position
      * @return local references to specific symbol
-     * @throws SymbolException            if no symbol is found
-     * @throws NoDefinitionFoundException if there is no symbol at specific position
+     * @throws SymbolException                 if no symbol is found
+     * @throws NoDefinitionFoundException      if there is no symbol at specific position
+     * @throws WorkspaceBeingPreparedException if indexes are not built yet
      */
     public RefLocations localRefs(Path root,
                                   Position position) throws
             SymbolException,
-            NoDefinitionFoundException {
+            NoDefinitionFoundException,
+            WorkspaceBeingPreparedException {
 
         LOGGER.info("Local refs {} {}:{}",
                 position.getFile(),
@@ -143,14 +189,8 @@ public class SymbolService {
         RefLocations ret = new RefLocations();
         ret.setRefs(new LinkedList<>());
         try {
-            workspace.computeIndexes(taskExecutorConfiguration.taskExecutor());
-
             SymbolIndex index = workspace.findIndex(sourceFile);
-            if (index.isBeingIndexed()) {
-                throw new WorkspaceBeingPreparedException();
-            }
-            if (!index.isIndexed()) {
-                index.index(taskExecutorConfiguration.taskExecutor());
+            if (!isReady(index, TaskPriority.INTERACTIVE)) {
                 throw new WorkspaceBeingPreparedException();
             }
             CSVRecord symbol = getSymbol(index, position);
@@ -158,20 +198,30 @@ public class SymbolService {
                 throw new NoDefinitionFoundException();
             }
 
-            try (SymbolResultSet records = index.getRecords(record -> {
-                boolean match = symbol.get(1).equals(record.get(1));
-                if (match && SymbolIndex.DEF.equals(record.get(0))) {
-                    ret.getRefs().add(SymbolIndex.toRange(record));
-                    return false;
+            // references from files owned by dependent units and definition owned by dependency are kept in other
+            // indexes
+            Collection<SymbolIndex> indexes = new LinkedList<>();
+            indexes.add(index);
+            indexes.addAll(workspace.getRelatedIndexes(index));
+            for (SymbolIndex related : indexes) {
+                if (!isReady(related, TaskPriority.INTERACTIVE)) {
+                    throw new WorkspaceBeingPreparedException();
                 }
-                return match;
-            })) {
-                for (CSVRecord record : records) {
-                    ret.getRefs().add(SymbolIndex.toRange(record));
+                try (SymbolResultSet records = related.getRecords(record -> {
+                    boolean match = symbol.get(1).equals(record.get(1));
+                    if (match && SymbolIndex.DEF.equals(record.get(0))) {
+                        ret.getRefs().add(SymbolIndex.toRange(record));
+                        return false;
+                    }
+                    return match;
+                })) {
+                    for (CSVRecord record : records) {
+                        ret.getRefs().add(SymbolIndex.toRange(record));
+                    }
                 }
-                return ret;
             }
-        } catch (NoDefinitionFoundException e) {
+            return ret;
+        } catch (NoDefinitionFoundException | WorkspaceBeingPreparedException e) {
             throw e;
         } catch (Exception e) {
             LOGGER.error("An error occurred while looking for local refs {} {}:{}",
@@ -186,20 +236,21 @@ public class SymbolService {
     /**
      * @param root workpace root
      * @return all external references from given repository
-     * @throws SymbolException if no foundSymbol is found
+     * @throws SymbolException                 if no foundSymbol is found
+     * @throws WorkspaceBeingPreparedException if indexes are not built yet
      */
     public ExternalRefs externalRefs(Path root)
             throws WorkspaceException,
-            SymbolException {
+            SymbolException,
+            WorkspaceBeingPreparedException {
 
         LOGGER.info("External refs in {}",
                 root);
 
         try {
             Workspace workspace = workspaceService.getWorkspace(root);
-            workspace.computeIndexes(taskExecutorConfiguration.taskExecutor());
             ExternalRefs ret = new ExternalRefs();
-            Collection<SymbolIndex> indexes = workspace.getIndexes();
+            Collection<SymbolIndex> indexes = getReadyIndexes(workspace, TaskPriority.BACKGROUND);
             Collection<DefSpec> defSpecs = new LinkedList<>();
             for (SymbolIndex index : indexes) {
                 try (SymbolResultSet resultSet = index.getRecords(record -> {
@@ -220,6 +271,8 @@ public class SymbolService {
             }
             ret.setDefs(defSpecs);
             return ret;
+        } catch (WorkspaceBeingPreparedException e) {
+            throw e;
         } catch (Exception e) {
             LOGGER.error("An error occurred while looking for external refs in {}",
                     root,
@@ -231,22 +284,23 @@ public class SymbolService {
     /**
      * @param root repository root
      * @return all exported symbols from given repository
-     * @throws SymbolException if no symbol is found
+     * @throws SymbolException                 if no symbol is found
+     * @throws WorkspaceBeingPreparedException if indexes are not built yet
      */
     public ExportedSymbols exportedSymbols(Path root)
             throws WorkspaceException,
-            SymbolException {
+            SymbolException,
+            WorkspaceBeingPreparedException {
 
         LOGGER.info("Exported symbols in {}",
                 root);
 
         try {
             Workspace workspace = workspaceService.getWorkspace(root);
-            workspace.computeIndexes(taskExecutorConfiguration.taskExecutor());
             ExportedSymbols ret = new ExportedSymbols();
             Collection<com.sourcegraph.common.model.Symbol> symbols = new HashSet<>();
 
-            Collection<SymbolIndex> indexes = workspace.getIndexes();
+            Collection<SymbolIndex> indexes = getReadyIndexes(workspace, TaskPriority.BACKGROUND);
             for (SymbolIndex index : indexes) {
                 try (SymbolResultSet resultSet = index.getRecords(record -> SymbolIndex.DEF.equals(record.get(0)) &&
                         "true".equals(record.get(12)))) {
@@ -258,6 +312,8 @@ public class SymbolService {
             }
             ret.setSymbols(symbols);
             return ret;
+        } catch (WorkspaceBeingPreparedException e) {
+            throw e;
         } catch (Exception e) {
             LOGGER.error("An error occurred while looking for exported symbols in {}",
                     root,
@@ -285,16 +341,8 @@ public class SymbolService {
         Workspace workspace = workspaceService.getWorkspace(root);
 
         try {
-            workspace.computeIndexes(taskExecutorConfiguration.taskExecutor());
-            Collection<SymbolIndex> indexes = workspace.getIndexes();
+            Collection<SymbolIndex> indexes = getReadyIndexes(workspace, TaskPriority.INTERACTIVE);
             for (SymbolIndex index : indexes) {
-                if (index.isBeingIndexed()) {
-                    throw new WorkspaceBeingPreparedException();
-                }
-                if (!index.isIndexed()) {
-                    index.index(taskExecutorConfiguration.taskExecutor());
-                    throw new WorkspaceBeingPreparedException();
-                }
                 try (SymbolResultSet resultSet = index.getRecords(record -> {
                     if (SymbolIndex.REF.equals(record.get(0))) {
                         return false;
@@ -352,11 +400,7 @@ public class SymbolService {
         try {
 
             SymbolIndex index = workspace.findIndex(sourceFile);
-            if (index.isBeingIndexed()) {
-                throw new WorkspaceBeingPreparedException();
-            }
-            if (!index.isIndexed()) {
-                index.index(taskExecutorConfiguration.taskExecutor());
+            if (!isReady(index, TaskPriority.INTERACTIVE)) {
                 throw new WorkspaceBeingPreparedException();
             }
             CSVRecord symbol = getSymbol(index, position);
@@ -445,25 +489,87 @@ public class SymbolService {
 
     private com.sourcegraph.common.model.Symbol getSymbol(Position position, Workspace workspace, Path sourceFile) throws WorkspaceBeingPreparedException, NoDefinitionFoundException, IOException {
         SymbolIndex index = workspace.findIndex(sourceFile);
-        if (index.isBeingIndexed()) {
-            throw new WorkspaceBeingPreparedException();
-        }
-        if (!index.isIndexed()) {
-            index.index(taskExecutorConfiguration.taskExecutor());
+        if (!isReady(index, TaskPriority.INTERACTIVE)) {
             throw new WorkspaceBeingPreparedException();
         }
         CSVRecord symbol = getSymbol(index, position);
         if (symbol == null) {
             throw new NoDefinitionFoundException();
         }
-        try (SymbolResultSet resultSet = index.getRecords(record -> !SymbolIndex.REF.equals(record.get(0)) &&
-                symbol.get(1).equals(record.get(1)))) {
-            Iterator<CSVRecord> defs = resultSet.iterator();
-            if (!defs.hasNext()) {
+        CSVRecord def = findDefinition(index, symbol.get(1));
+        if (def == null) {
+            // symbol may be defined in file owned by another unit
+            boolean ready = true;
+            for (SymbolIndex related : workspace.getRelatedIndexes(index)) {
+                if (!isReady(related, TaskPriority.INTERACTIVE)) {
+                    ready = false;
+                    continue;
+                }
+                def = findDefinition(related, symbol.get(1));
+                if (def != null) {
+                    break;
+                }
+            }
+            if (def == null) {
+                if (!ready) {
+                    throw new WorkspaceBeingPreparedException();
+                }
                 throw new NoDefinitionFoundException();
             }
-            return SymbolIndex.toSymbol(defs.next());
         }
+        return SymbolIndex.toSymbol(def);
+    }
+
+    /**
+     * @param index index to look for definition in
+     * @param path  symbol path
+     * @return definition of symbol or null if there is no such definition in the index
+     * @throws IOException
+     */
+    private CSVRecord findDefinition(SymbolIndex index, String path) throws IOException {
+        try (SymbolResultSet resultSet = index.getRecords(record -> !SymbolIndex.REF.equals(record.get(0)) &&
+                path.equals(record.get(1)))) {
+            Iterator<CSVRecord> defs = resultSet.iterator();
+            return defs.hasNext() ? defs.next() : null;
+        }
+    }
+
+    /**
+     * @param index    index
+     * @param priority priority to build index with
+     * @return true if index is built, otherwise starts building it or promotes pending build to the given priority
+     */
+    private boolean isReady(SymbolIndex index, TaskPriority priority) {
+        if (index.isBeingIndexed() || !index.isIndexed()) {
+            // joins pending build (queued background build of unit is promoted) or starts new one
+            index.index(taskExecutorConfiguration.indexExecutor(), priority);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Query pipeline waits for indexes before running queries, here we only make sure that all of them are built
+     * instead of blocking query thread until they are
+     *
+     * @param workspace workspace
+     * @param priority  priority to build missing indexes with
+     * @return all indexes of workspace
+     * @throws IOException                     if there was an I/O error
+     * @throws WorkspaceBeingPreparedException if some indexes are not built yet, their builds are started
+     */
+    private Collection<SymbolIndex> getReadyIndexes(Workspace workspace, TaskPriority priority)
+            throws IOException, WorkspaceBeingPreparedException {
+        Collection<SymbolIndex> ret = workspace.getIndexes();
+        boolean ready = true;
+        for (SymbolIndex index : ret) {
+            // checking all indexes, so that all missing ones are started at once
+            ready &= isReady(index, priority);
+        }
+        if (!ready) {
+            throw new WorkspaceBeingPreparedException();
+        }
+        return ret;
     }
 
 }
\ No newline at end of file
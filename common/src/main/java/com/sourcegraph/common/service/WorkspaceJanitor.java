@@ -0,0 +1,403 @@
+package com.sourcegraph.common.service;
+
+import com.sourcegraph.common.configuration.TaskExecutorConfiguration;
+import com.sourcegraph.common.javac.SymbolIndex;
+import com.sourcegraph.common.javac.Workspace;
+import com.sourcegraph.common.javac.WorkspaceService;
+import com.sourcegraph.common.model.JavacConfig;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Keeps workspaces under disk quota by evicting least recently used ones. Evicted workspace is either removed
+ * completely or stripped (checkout is removed, configuration and indexes are kept and keep serving queries).
+ * Both kinds are prepared again on demand
+ */
+@Service
+public class WorkspaceJanitor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WorkspaceJanitor.class);
+
+    /**
+     * Marks stripped workspace
+     */
+    private static final String STRIPPED_FILE = ".stripped";
+
+    /**
+     * Last access time of workspace (mtime), located next to workspace directory
+     */
+    private static final String ACCESS_FILE = ".access";
+
+    /**
+     * Directory (under workspace root) evicted workspaces are moved to before removal
+     */
+    private static final String TRASH_DIR = ".trash";
+
+    /**
+     * Access file is updated no more often than once per this number of milliseconds
+     */
+    private static final long ACCESS_FILE_RESOLUTION = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Wait no more than X seconds for cancelled index builds to stop
+     */
+    private static final long CANCEL_TIMEOUT = 30;
+
+    /**
+     * Files (located in workspace root) kept in stripped workspace along with configuration and index of each unit
+     */
+    private static final Collection<String> WORKSPACE_FILES = Arrays.asList(
+            JavacConfig.MANIFEST_FILE_NAME,
+            ConfigurationService.STAMP_FILE);
+
+    @Autowired
+    private RepositoryService repositoryService;
+
+    @Autowired
+    private WorkspaceService workspaceService;
+
+    @Autowired
+    private TaskExecutorConfiguration taskExecutorConfiguration;
+
+    /**
+     * Root directory where all repositories are located
+     */
+    @Value("${workspace:${SGPATH:${user.home}/.sourcegraph}/workspace/java}")
+    private String workspace;
+
+    /**
+     * Disk quota for all workspaces (megabytes), 0 disables eviction
+     */
+    @Value("${workspace.quota:0}")
+    private long quota;
+
+    /**
+     * Indicates if evicted workspaces should keep their indexes
+     */
+    @Value("${workspace.evict.keep.index:true}")
+    private boolean keepIndex;
+
+    /**
+     * Workspaces accessed less than X seconds ago are never evicted
+     */
+    @Value("${workspace.evict.min.idle:3600}")
+    private long minIdle;
+
+    /**
+     * Run eviction every X seconds
+     */
+    @Value("${workspace.evict.interval:600}")
+    private long interval;
+
+    /**
+     * workspace -> last time access file was updated
+     */
+    private Map<File, Long> accessFileUpdates = new ConcurrentHashMap<>();
+
+    /**
+     * Records workspace access
+     *
+     * @param workspace workspace root
+     */
+    public void touch(File workspace) {
+        long now = System.currentTimeMillis();
+        Long updated = accessFileUpdates.get(workspace);
+        if (updated != null && now - updated < ACCESS_FILE_RESOLUTION) {
+            return;
+        }
+        accessFileUpdates.put(workspace, now);
+        File accessFile = new File(workspace.getParentFile(), ACCESS_FILE);
+        try {
+            FileUtils.touch(accessFile);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to update access time of {}", workspace, e);
+        }
+    }
+
+    /**
+     * @param workspace workspace root
+     * @return true if workspace has only configuration and indexes left
+     */
+    public static boolean isStripped(File workspace) {
+        return new File(workspace, STRIPPED_FILE).exists();
+    }
+
+    /**
+     * Schedules periodic pruning of unused index shards and eviction
+     */
+    @PostConstruct
+    private void init() {
+        // shards are shared by all workspaces and pruned no matter if there is a quota
+        taskExecutorConfiguration.scheduledExecutor().scheduleWithFixedDelay(
+                () -> taskExecutorConfiguration.cloneExecutor().execute(workspaceService::pruneShards),
+                interval,
+                interval,
+                TimeUnit.SECONDS);
+        if (quota <= 0) {
+            return;
+        }
+        LOGGER.info("Keeping workspaces under {} MB", quota);
+        // scanning is I/O-bound and may take a while, scheduler thread only hands it over
+        taskExecutorConfiguration.scheduledExecutor().scheduleWithFixedDelay(
+                () -> taskExecutorConfiguration.cloneExecutor().execute(this::collect),
+                interval,
+                interval,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Evicts least recently used workspaces until total size fits into quota. Workspaces are stripped first (if
+     * configured to keep indexes), stripped workspaces are removed completely only if stripping was not enough
+     */
+    synchronized void collect() {
+        // leftovers of interrupted removals
+        FileUtils.deleteQuietly(getTrash().toFile());
+        try {
+            List<Entry> entries = scan();
+            long total = 0;
+            for (Entry entry : entries) {
+                total += entry.size;
+            }
+            long limit = quota * FileUtils.ONE_MB;
+            if (total <= limit) {
+                return;
+            }
+            LOGGER.info("Workspaces take {} MB, evicting least recently used ones", total / FileUtils.ONE_MB);
+            entries.sort(Comparator.comparingLong(entry -> entry.accessed));
+            long idleSince = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(minIdle);
+            for (int pass = 0; pass < 2 && total > limit; pass++) {
+                for (Entry entry : entries) {
+                    if (total <= limit) {
+                        break;
+                    }
+                    if (entry.accessed > idleSince || entry.evicted || (pass == 0 && entry.stripped)) {
+                        continue;
+                    }
+                    total -= entry.size;
+                    total += evict(entry, pass == 0 && keepIndex);
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.error("An error occurred while evicting workspaces", e);
+        }
+    }
+
+    /**
+     * @return all prepared workspaces
+     * @throws IOException
+     */
+    private List<Entry> scan() throws IOException {
+        List<Entry> ret = new LinkedList<>();
+        Path root = Paths.get(workspace);
+        Path trash = getTrash();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (dir.equals(trash)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                if (!dir.getFileName().toString().equals("workspace") || dir.equals(root) ||
+                        (!Files.exists(dir.resolve(".git")) && !Files.exists(dir.resolve(STRIPPED_FILE)))) {
+                    return FileVisitResult.CONTINUE;
+                }
+                Entry entry = new Entry();
+                entry.workspace = dir.toFile();
+                entry.size = FileUtils.sizeOfDirectory(entry.workspace);
+                entry.stripped = isStripped(entry.workspace);
+                File accessFile = new File(entry.workspace.getParentFile(), ACCESS_FILE);
+                entry.accessed = accessFile.exists() ? accessFile.lastModified() : attrs.lastModifiedTime().toMillis();
+                ret.add(entry);
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * Evicts workspace unless it's busy. Workspace lock is held only while workspace is forgotten and moved away,
+     * files are removed afterwards
+     *
+     * @param entry workspace to evict
+     * @param strip indicates that indexes should be kept if possible
+     * @return size of workspace after eviction
+     */
+    private long evict(Entry entry, boolean strip) {
+        File workspace = entry.workspace;
+        // requests for workspace keep being served while builds stop
+        if (!cancelIndexing(workspace)) {
+            LOGGER.debug("Not evicting workspace {}, index builds did not stop", workspace);
+            return entry.size;
+        }
+        File commitDir = workspace.getParentFile();
+        boolean stripped = false;
+        Path trashed;
+        // requests for workspace wait until it's moved away and then prepare it again
+        synchronized (repositoryService.getLock(workspace)) {
+            if (workspaceService.getWorkspace(workspace.toPath()).isBeingIndexed() ||
+                    !repositoryService.forget(workspace)) {
+                LOGGER.debug("Not evicting busy workspace {}", workspace);
+                return entry.size;
+            }
+            // workspace object caches configuration and indexes
+            workspaceService.forget(workspace.toPath());
+            accessFileUpdates.remove(workspace);
+            try {
+                if (strip && isIndexed(workspace)) {
+                    trashed = moveToTrash(workspace.toPath());
+                    keepIndexes(trashed, workspace.toPath());
+                    stripped = true;
+                } else {
+                    trashed = moveToTrash(commitDir.toPath());
+                    removeEmptyParents(commitDir.getParentFile());
+                }
+            } catch (IOException e) {
+                LOGGER.error("Unable to evict workspace {}", workspace, e);
+                return workspace.isDirectory() ? FileUtils.sizeOfDirectory(workspace) : 0;
+            }
+        }
+        LOGGER.info("{} workspace {}", stripped ? "Stripping" : "Removing", workspace);
+        FileUtils.deleteQuietly(trashed.toFile());
+        if (stripped) {
+            entry.stripped = true;
+            entry.size = FileUtils.sizeOfDirectory(workspace);
+            return entry.size;
+        }
+        entry.evicted = true;
+        return 0;
+    }
+
+    /**
+     * @return directory evicted workspaces are moved to before removal
+     */
+    private Path getTrash() {
+        return Paths.get(workspace).resolve(TRASH_DIR);
+    }
+
+    /**
+     * Atomically moves directory to trash
+     *
+     * @param dir directory to move
+     * @return new location of directory
+     * @throws IOException
+     */
+    private Path moveToTrash(Path dir) throws IOException {
+        Path trash = Files.createDirectories(getTrash());
+        return Files.move(dir, trash.resolve(UUID.randomUUID().toString()), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Cancels index builds of idle workspace, nobody waits for them and they would be removed anyway
+     *
+     * @param workspace workspace root
+     * @return true if there are no builds left
+     */
+    private boolean cancelIndexing(File workspace) {
+        Workspace ws = workspaceService.getWorkspace(workspace.toPath());
+        if (!ws.isBeingIndexed()) {
+            return true;
+        }
+        LOGGER.info("Cancelling index builds of workspace {}", workspace);
+        try {
+            ws.cancelIndexing().get(CANCEL_TIMEOUT, TimeUnit.SECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param workspace workspace root
+     * @return true if all units of workspace are indexed
+     */
+    private static boolean isIndexed(File workspace) {
+        Collection<Path> configFiles = JavacConfig.readManifest(workspace.toPath());
+        if (configFiles == null) {
+            return false;
+        }
+        for (Path configFile : configFiles) {
+            if (!Files.exists(configFile.resolveSibling(SymbolIndex.INDEX_FILE_NAME))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves configuration and index files (the ones listed in manifest) of workspace moved away back to workspace
+     * root, turning it into stripped workspace
+     *
+     * @param from      workspace moved away
+     * @param workspace workspace root
+     * @throws IOException
+     */
+    private static void keepIndexes(Path from, Path workspace) throws IOException {
+        Collection<Path> configFiles = JavacConfig.readManifest(from);
+        if (configFiles == null) {
+            throw new IOException("No manifest in " + from);
+        }
+        Files.createDirectories(workspace);
+        Files.createFile(workspace.resolve(STRIPPED_FILE));
+        for (String name : WORKSPACE_FILES) {
+            if (Files.exists(from.resolve(name))) {
+                Files.move(from.resolve(name), workspace.resolve(name));
+            }
+        }
+        for (Path configFile : configFiles) {
+            Path target = workspace.resolve(from.relativize(configFile));
+            Files.createDirectories(target.getParent());
+            Files.move(configFile, target);
+            Files.move(configFile.resolveSibling(SymbolIndex.INDEX_FILE_NAME),
+                    target.resolveSibling(SymbolIndex.INDEX_FILE_NAME));
+        }
+    }
+
+    /**
+     * Removes empty repository directories left after workspace removal
+     *
+     * @param dir directory to start from
+     */
+    private void removeEmptyParents(File dir) {
+        File root = new File(workspace);
+        while (dir != null && !dir.equals(root)) {
+            String[] children = dir.list();
+            if (children == null || children.length > 0 || !dir.delete()) {
+                return;
+            }
+            dir = dir.getParentFile();
+        }
+    }
+
+    /**
+     * Workspace eviction candidate
+     */
+    private static class Entry {
+
+        private File workspace;
+
+        private long size;
+
+        private long accessed;
+
+        private boolean stripped;
+
+        private boolean evicted;
+    }
+}
@@ -0,0 +1,56 @@
+package com.sourcegraph.common.util;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical concurrent computations: while computation for some key is in flight, callers asking for the
+ * same key share its result (or error) instead of starting another one. Nothing is kept once computation completes,
+ * so coalescing never serves results that were computed before the request arrived
+ */
+public class Coalescer<K> {
+
+    /**
+     * key -> computation in flight
+     */
+    private Map<K, CompletableFuture<?>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * @param key         normalized computation key, keys should identify result type as well
+     * @param computation starts computation, invoked only if there is no computation in flight for the given key
+     * @return future completed with result of computation in flight
+     */
+    @SuppressWarnings("unchecked")
+    public <V> CompletableFuture<V> submit(K key, Supplier<CompletableFuture<V>> computation) {
+        CompletableFuture<V> ret = new CompletableFuture<>();
+        CompletableFuture<?> existing = pending.putIfAbsent(key, ret);
+        if (existing != null) {
+            return ((CompletableFuture<V>) existing).thenApply(result -> result);
+        }
+        try {
+            computation.get().whenComplete((result, ex) -> {
+                // removing first, requests arriving after completion should start a new computation
+                pending.remove(key, ret);
+                if (ex == null) {
+                    ret.complete(result);
+                } else {
+                    ret.completeExceptionally(ex);
+                }
+            });
+        } catch (RuntimeException ex) {
+            pending.remove(key, ret);
+            ret.completeExceptionally(ex);
+        }
+        // each caller gets its own dependent future, so that no caller may complete shared one
+        return ret.thenApply(result -> result);
+    }
+
+    /**
+     * @return number of computations in flight
+     */
+    public int size() {
+        return pending.size();
+    }
+}
@@ -0,0 +1,77 @@
+package com.sourcegraph.common.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Thread-safe cache that keeps no more than given number of entries, least recently used entries are evicted first.
+ * Each invalidation starts new generation, values computed before invalidation may be rejected by passing the
+ * generation they were computed in
+ */
+public class LruCache<K, V> {
+
+    private Map<K, V> entries;
+
+    private long generation;
+
+    /**
+     * @param maxSize maximum number of entries to keep, 0 disables cache
+     */
+    public LruCache(int maxSize) {
+        entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param key key
+     * @return cached value or null
+     */
+    public synchronized V get(K key) {
+        return entries.get(key);
+    }
+
+    /**
+     * @return current generation, to be passed to {@link #put(Object, Object, long)}
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Caches value unless cache was invalidated since the given generation
+     *
+     * @param key        key
+     * @param value      value
+     * @param generation generation value was computed in
+     * @return true if value was cached
+     */
+    public synchronized boolean put(K key, V value, long generation) {
+        if (generation != this.generation) {
+            return false;
+        }
+        entries.put(key, value);
+        return true;
+    }
+
+    /**
+     * Removes matching entries and starts new generation
+     *
+     * @param filter selects keys to remove
+     */
+    public synchronized void invalidate(Predicate<K> filter) {
+        generation++;
+        entries.keySet().removeIf(filter);
+    }
+
+    /**
+     * @return number of cached entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,110 @@
+package com.sourcegraph.common.util;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed size thread pool that picks queued tasks in priority order, tasks of the same priority are executed in
+ * submission order. Tasks submitted using regular {@link ExecutorService} methods get background priority
+ */
+public class PriorityExecutorService extends ThreadPoolExecutor {
+
+    /**
+     * Submission counter, keeps FIFO order within the same priority
+     */
+    private AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param poolSize number of threads
+     */
+    public PriorityExecutorService(int poolSize) {
+        super(poolSize,
+                poolSize,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>());
+    }
+
+    /**
+     * @param task     task to execute
+     * @param priority task priority
+     * @return pending task
+     */
+    public <T> Future<T> submit(Callable<T> task, TaskPriority priority) {
+        PriorityTask<T> ret = new PriorityTask<>(task, priority, sequence.incrementAndGet());
+        execute(ret);
+        return ret;
+    }
+
+    /**
+     * @param priority priority of submitted tasks
+     * @return executor view submitting tasks with given priority, to be used by {@link CompletableFuture} stages
+     */
+    public Executor withPriority(TaskPriority priority) {
+        return command -> submit(Executors.callable(command), priority);
+    }
+
+    /**
+     * Raises priority of a queued task. Does nothing if task is not queued anymore or its priority is already
+     * the same or higher
+     *
+     * @param task     task returned by this executor
+     * @param priority new priority
+     */
+    public void promote(Future<?> task, TaskPriority priority) {
+        if (!(task instanceof PriorityTask)) {
+            return;
+        }
+        PriorityTask<?> priorityTask = (PriorityTask<?>) task;
+        synchronized (priorityTask) {
+            if (priorityTask.priority.compareTo(priority) <= 0) {
+                return;
+            }
+            // priority queue does not reorder elements in place, task has to be re-inserted
+            if (getQueue().remove(priorityTask)) {
+                priorityTask.priority = priority;
+                execute(priorityTask);
+            }
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        super.execute(command instanceof PriorityTask ? command : newTaskFor(command, null));
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        return new PriorityTask<>(callable, TaskPriority.BACKGROUND, sequence.incrementAndGet());
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        return newTaskFor(Executors.callable(runnable, value));
+    }
+
+    /**
+     * Future task ordered by priority and then by submission sequence
+     */
+    private static class PriorityTask<T> extends FutureTask<T> implements Comparable<PriorityTask<?>> {
+
+        private volatile TaskPriority priority;
+
+        private long sequence;
+
+        PriorityTask(Callable<T> callable, TaskPriority priority, long sequence) {
+            super(callable);
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(PriorityTask<?> o) {
+            int ret = priority.compareTo(o.priority);
+            if (ret != 0) {
+                return ret;
+            }
+            return Long.compare(sequence, o.sequence);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.sourcegraph.common.util;
+
+/**
+ * Priority of tasks submitted to {@link PriorityExecutorService}, declared from the highest to the lowest one
+ */
+public enum TaskPriority {
+
+    /**
+     * Work user is waiting for (for example indexing triggered by hover)
+     */
+    INTERACTIVE,
+
+    /**
+     * Bulk work (for example indexing triggered by /prepare or by external refs crawl)
+     */
+    BACKGROUND
+
+}
@@ -0,0 +1,77 @@
+package com.sourcegraph.common.config.builder;
+
+import com.sourcegraph.common.model.IndexProfile;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class BuildFingerprintTest {
+
+    private Path root;
+
+    private String initial;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("fingerprint");
+        write("pom.xml", "<project/>");
+        write("src/main/java/A.java", "class A {}");
+        initial = BuildFingerprint.compute(root, IndexProfile.FULL);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(root.toFile());
+    }
+
+    @Test
+    public void testSourceContentIsIgnored() throws Exception {
+        write("src/main/java/A.java", "class A { int a; }");
+        assertEquals(initial, BuildFingerprint.compute(root, IndexProfile.FULL));
+    }
+
+    @Test
+    public void testBuildOutputIsIgnored() throws Exception {
+        write("target/generated-sources/B.java", "class B {}");
+        write(".git/config", "");
+        assertEquals(initial, BuildFingerprint.compute(root, IndexProfile.FULL));
+    }
+
+    @Test
+    public void testDescriptorChange() throws Exception {
+        write("pom.xml", "<project><modules/></project>");
+        assertNotEquals(initial, BuildFingerprint.compute(root, IndexProfile.FULL));
+    }
+
+    @Test
+    public void testSourceLayoutChange() throws Exception {
+        write("src/main/java/B.java", "class B {}");
+        assertNotEquals(initial, BuildFingerprint.compute(root, IndexProfile.FULL));
+    }
+
+    @Test
+    public void testBuildScriptChange() throws Exception {
+        write("buildSrc/src/main/groovy/Plugin.groovy", "class Plugin {}");
+        String withPlugin = BuildFingerprint.compute(root, IndexProfile.FULL);
+        assertNotEquals(initial, withPlugin);
+        write("buildSrc/src/main/groovy/Plugin.groovy", "class Plugin { def a }");
+        assertNotEquals(withPlugin, BuildFingerprint.compute(root, IndexProfile.FULL));
+    }
+
+    @Test
+    public void testProfileChange() throws Exception {
+        assertNotEquals(initial, BuildFingerprint.compute(root, IndexProfile.NAVIGATION));
+    }
+
+    private void write(String file, String content) throws Exception {
+        FileUtils.writeStringToFile(new File(root.toFile(), file), content, StandardCharsets.UTF_8);
+    }
+}
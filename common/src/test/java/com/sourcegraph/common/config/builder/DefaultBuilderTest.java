@@ -0,0 +1,95 @@
+package com.sourcegraph.common.config.builder;
+
+import com.sourcegraph.common.model.IndexProfile;
+import com.sourcegraph.common.model.JavacConfig;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class DefaultBuilderTest {
+
+    private Path root;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("builder").toRealPath();
+        write("src/main/java/A.java", "class A {}");
+        write("src/test/java/ATest.java", "class ATest {}");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(root.toFile());
+    }
+
+    @Test
+    public void testFullProfile() throws Exception {
+        JavacConfig config = prepare(IndexProfile.FULL);
+        assertEquals(IndexProfile.FULL, config.profile);
+        assertEquals(new HashSet<>(Arrays.asList(file("src/main/java/A.java"), file("src/test/java/ATest.java"))),
+                new HashSet<>(config.files));
+        assertEquals(new HashSet<>(Arrays.asList(file("src/main/java"), file("src/test/java"))),
+                new HashSet<>(config.sources));
+    }
+
+    @Test
+    public void testExportsOnlyProfile() throws Exception {
+        JavacConfig config = prepare(IndexProfile.EXPORTS_ONLY);
+        assertEquals(IndexProfile.EXPORTS_ONLY, config.profile);
+        // test roots are neither indexed nor resolved
+        assertEquals(Collections.singleton(file("src/main/java/A.java")), new HashSet<>(config.files));
+        assertEquals(Collections.singletonList(file("src/main/java")), config.sources);
+    }
+
+    @Test
+    public void testProfileColumns() throws Exception {
+        assertTrue(IndexProfile.FULL.indexesLocals());
+        assertTrue(IndexProfile.FULL.indexesLocalRefs());
+        assertTrue(IndexProfile.FULL.indexesHovers());
+
+        assertTrue(IndexProfile.NAVIGATION.indexesLocals());
+        assertTrue(IndexProfile.NAVIGATION.indexesLocalRefs());
+        assertFalse(IndexProfile.NAVIGATION.indexesHovers());
+        assertTrue(IndexProfile.NAVIGATION.indexesTestSources());
+
+        assertFalse(IndexProfile.EXPORTS_ONLY.indexesLocals());
+        assertFalse(IndexProfile.EXPORTS_ONLY.indexesLocalRefs());
+        assertFalse(IndexProfile.EXPORTS_ONLY.indexesHovers());
+    }
+
+    @Test
+    public void testFromString() throws Exception {
+        assertEquals(IndexProfile.EXPORTS_ONLY, IndexProfile.fromString(" exports-only "));
+        assertEquals(IndexProfile.NAVIGATION, IndexProfile.fromString("Navigation"));
+        try {
+            IndexProfile.fromString("none");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private JavacConfig prepare(IndexProfile profile) throws Exception {
+        assertTrue(DefaultBuilder.prepare(root, profile, WorkspaceInventory.scan(root)));
+        return JavacConfig.read(root);
+    }
+
+    private String file(String path) {
+        return root.resolve(path).toString();
+    }
+
+    private void write(String file, String content) throws Exception {
+        FileUtils.writeStringToFile(new File(root.toFile(), file), content, StandardCharsets.UTF_8);
+    }
+}
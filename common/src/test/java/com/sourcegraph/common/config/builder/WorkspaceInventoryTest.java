@@ -0,0 +1,106 @@
+package com.sourcegraph.common.config.builder;
+
+import com.sourcegraph.common.model.JavacConfig;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class WorkspaceInventoryTest {
+
+    private Path root;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("inventory").toRealPath();
+        write("pom.xml", "<project/>");
+        write("a/pom.xml", "<project/>");
+        write("a/src/main/java/A.java", "class A {}");
+        write("a/src/main/java/p/B.java", "class B {}");
+        write("a/src/main/javadoc/C.java", "class C {}");
+        write("a/target/generated-sources/G.java", "class G {}");
+        write("a/target/pom.xml", "<project/>");
+        write(".git/D.java", "class D {}");
+        write("buildSrc/src/main/groovy/Plugin.groovy", "class Plugin {}");
+        write("lib/dependency.jar", "JAR");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(root.toFile());
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        WorkspaceInventory inventory = WorkspaceInventory.scan(root);
+        assertEquals(Arrays.asList(root.resolve("a/pom.xml"), root.resolve("pom.xml")),
+                inventory.getFiles("pom.xml"));
+        assertEquals(Collections.singleton(root.resolve("a/src/main/java").toString()), inventory.getSourceDirs());
+        assertEquals(Arrays.asList(root.resolve("a/src/main/java/A.java").toString(),
+                root.resolve("a/src/main/java/p/B.java").toString(),
+                root.resolve("a/src/main/javadoc/C.java").toString()),
+                new ArrayList<>(inventory.getSourceFiles()));
+        assertTrue(inventory.getBuildFiles().contains(root.resolve("buildSrc/src/main/groovy/Plugin.groovy")));
+        assertEquals(Collections.singletonMap(root.resolve("lib/dependency.jar"), 3L), inventory.getJars());
+    }
+
+    @Test
+    public void testSourceFiles() throws Exception {
+        WorkspaceInventory inventory = WorkspaceInventory.scan(root);
+        Path module = root.resolve("a");
+        assertEquals(new HashSet<>(Arrays.asList(root.resolve("a/src/main/java/A.java").toString(),
+                root.resolve("a/src/main/java/p/B.java").toString())),
+                inventory.getSourceFiles(module, Collections.singleton("src/main/java")));
+        // directories that weren't scanned are walked on demand
+        assertEquals(Collections.singleton(root.resolve("a/target/generated-sources/G.java").toString()),
+                inventory.getSourceFiles(module, Collections.singleton(module.resolve("target").toString())));
+        assertTrue(inventory.getSourceFiles(module, Collections.singleton("src/test/java")).isEmpty());
+    }
+
+    @Test
+    public void testBuildPackages() throws Exception {
+        write("a/src/main/java/x/build/A.java", "class A {}");
+        write("a/src/x/target/T.java", "class T {}");
+        WorkspaceInventory inventory = WorkspaceInventory.scan(root);
+        // "build" and "target" are packages inside of "java" directories
+        assertTrue(inventory.getSourceFiles().contains(root.resolve("a/src/main/java/x/build/A.java").toString()));
+        Path module = root.resolve("a");
+        assertEquals(new HashSet<>(Arrays.asList(root.resolve("a/src/main/java/A.java").toString(),
+                root.resolve("a/src/main/java/p/B.java").toString(),
+                root.resolve("a/src/main/java/x/build/A.java").toString())),
+                inventory.getSourceFiles(module, Collections.singleton("src/main/java")));
+        // other source roots containing build output directories are walked on demand
+        assertTrue(inventory.getSourceFiles(module, Collections.singleton("src")).
+                contains(root.resolve("a/src/x/target/T.java").toString()));
+    }
+
+    @Test
+    public void testConfigFiles() throws Exception {
+        write("a/" + JavacConfig.CONFIG_FILE_NAME, "{}");
+        WorkspaceInventory inventory = WorkspaceInventory.scan(root);
+        assertEquals(Collections.singletonList(root.resolve("a/" + JavacConfig.CONFIG_FILE_NAME)),
+                new ArrayList<>(inventory.getConfigFiles()));
+        inventory.addFile(root.resolve(JavacConfig.CONFIG_FILE_NAME));
+        inventory.addFile(root.resolve("a/target/" + JavacConfig.CONFIG_FILE_NAME));
+        assertEquals(Arrays.asList(root.resolve(JavacConfig.CONFIG_FILE_NAME),
+                root.resolve("a/" + JavacConfig.CONFIG_FILE_NAME)),
+                new ArrayList<>(inventory.getConfigFiles()));
+        // configuration files are not build files
+        assertTrue(inventory.getFiles(JavacConfig.CONFIG_FILE_NAME).isEmpty());
+    }
+
+    private void write(String file, String content) throws Exception {
+        FileUtils.writeStringToFile(new File(root.toFile(), file), content, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,35 @@
+package com.sourcegraph.common.javac;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ConfigTrieTest {
+
+    private static final Path ROOT = Paths.get("/ws").toAbsolutePath();
+
+    private static final Path TOP = ROOT.resolve(".jconfig.json");
+
+    private static final Path MODULE = ROOT.resolve("module/.jconfig.json");
+
+    private ConfigTrie trie = new ConfigTrie(Arrays.asList(TOP, MODULE));
+
+    @Test
+    public void testNearestConfig() {
+        assertEquals(TOP, trie.find(ROOT));
+        assertEquals(TOP, trie.find(ROOT.resolve("src/main/java")));
+        assertEquals(MODULE, trie.find(ROOT.resolve("module")));
+        assertEquals(MODULE, trie.find(ROOT.resolve("module/src/main/java/com")));
+        assertEquals(TOP, trie.find(ROOT.resolve("module2/src")));
+    }
+
+    @Test
+    public void testNoConfig() {
+        assertNull(trie.find(ROOT.getParent()));
+        assertNull(trie.find(Paths.get("/other/src").toAbsolutePath()));
+    }
+}
@@ -0,0 +1,119 @@
+package com.sourcegraph.common.javac;
+
+import com.sourcegraph.common.model.JavacConfig;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ShardStoreTest {
+
+    private Path root;
+
+    private ShardStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("shards");
+        store = new ShardStore(root.resolve("store"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(root.toFile());
+    }
+
+    @Test
+    public void testBlobIdMatchesGit() throws Exception {
+        assertEquals("a869c28495266ce277963307009946887ad25470",
+                ShardStore.blobId("class A {}\n".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testPutAndFind() throws Exception {
+        Path index = write(root.resolve(".index"), "def,A,A.java\r\n");
+        assertNull(store.find("unit", "a869c28495266ce277963307009946887ad25470"));
+        store.put("unit", "a869c28495266ce277963307009946887ad25470", index);
+        Path shard = store.find("unit", "a869c28495266ce277963307009946887ad25470");
+        assertNotNull(shard);
+        assertEquals("def,A,A.java\r\n", new String(Files.readAllBytes(shard), StandardCharsets.UTF_8));
+        // shards of other units are not shared
+        assertNull(store.find("other", "a869c28495266ce277963307009946887ad25470"));
+        // shard is not a copy of index
+        assertTrue(Files.isSameFile(index, shard));
+
+        Path linked = root.resolve("other.index");
+        ShardStore.link(shard, linked);
+        assertTrue(Files.isSameFile(shard, linked));
+    }
+
+    @Test
+    public void testContentId() throws Exception {
+        Path workspace = Files.createDirectory(root.resolve("workspace"));
+        write(workspace.resolve("src/A.java"), "class A {}");
+        write(workspace.resolve("src/B.java"), "class B {}");
+        JavacConfig config = new JavacConfig();
+        config.files = new HashSet<>(Collections.singletonList("src/A.java"));
+        config.sources = Collections.singletonList("src");
+        config.save(workspace, workspace);
+        String contentId = ShardStore.contentId(workspace, config);
+
+        // the same unit located elsewhere
+        Path fork = Files.createDirectory(root.resolve("fork"));
+        write(fork.resolve("src/A.java"), "class A {}");
+        write(fork.resolve("src/B.java"), "class B {}");
+        JavacConfig forkConfig = new JavacConfig();
+        forkConfig.files = new HashSet<>(Collections.singletonList("src/A.java"));
+        forkConfig.sources = Collections.singletonList("src");
+        forkConfig.save(fork, fork);
+        assertEquals(contentId, ShardStore.contentId(fork, forkConfig));
+
+        // files on source path matter even if they are not part of unit
+        write(fork.resolve("src/B.java"), "class B { int b; }");
+        assertNotEquals(contentId, ShardStore.contentId(fork, forkConfig));
+    }
+
+    @Test
+    public void testContentIdOfClassPath() throws Exception {
+        Path workspace = Files.createDirectory(root.resolve("workspace"));
+        write(workspace.resolve("src/A.java"), "class A {}");
+        write(workspace.resolve("lib/dependency.jar"), "1");
+        JavacConfig config = new JavacConfig();
+        config.files = new HashSet<>(Collections.singletonList("src/A.java"));
+        config.classPath = Collections.singletonList("lib/dependency.jar");
+        config.save(workspace, workspace);
+        String contentId = ShardStore.contentId(workspace, config);
+
+        // jar checked into repository is keyed by content, not only by path
+        write(workspace.resolve("lib/dependency.jar"), "2");
+        assertNotEquals(contentId, ShardStore.contentId(workspace, config));
+    }
+
+    @Test
+    public void testPrune() throws Exception {
+        store.put("unit", "a869c28495266ce277963307009946887ad25470", write(root.resolve("old.index"), "old"));
+        store.put("unit", "b869c28495266ce277963307009946887ad25470", write(root.resolve("new.index"), "new"));
+        Files.setLastModifiedTime(store.getShard("unit", "a869c28495266ce277963307009946887ad25470"),
+                FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(30)));
+        assertEquals(1, store.prune(TimeUnit.DAYS.toMillis(7)));
+        assertFalse(Files.exists(store.getShard("unit", "a869c28495266ce277963307009946887ad25470")));
+        assertNotNull(store.find("unit", "b869c28495266ce277963307009946887ad25470"));
+        // unit index outlives its shard
+        assertTrue(Files.exists(root.resolve("old.index")));
+    }
+
+    private static Path write(Path file, String content) throws Exception {
+        Files.createDirectories(file.getParent());
+        return Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+}
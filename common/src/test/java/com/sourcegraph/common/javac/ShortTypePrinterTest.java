@@ -0,0 +1,117 @@
+package com.sourcegraph.common.javac;
+
+import com.sun.source.util.JavacTask;
+import com.sun.tools.javac.code.Symbol;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ShortTypePrinterTest {
+
+    private static final String SOURCE = "import java.util.*;\n" +
+            "class A<T extends Comparable<T>> {\n" +
+            "    Map<String, List<T>> map;\n" +
+            "    List<T> list;\n" +
+            "    int[][] grid;\n" +
+            "    List<? extends Number>[] numbers;\n" +
+            "    List<? super Integer> sinks;\n" +
+            "    List<?> any;\n" +
+            "    Map.Entry<String, T> entry;\n" +
+            "    Inner inner;\n" +
+            "    T value;\n" +
+            "    class Inner {}\n" +
+            "    <E extends Exception> T find(Collection<? super T> from, int limit, String... names) throws E {\n" +
+            "        return null;\n" +
+            "    }\n" +
+            "}\n";
+
+    private static final Map<String, String> EXPECTED = new HashMap<>();
+
+    static {
+        EXPECTED.put("map", "Map<String, List<T>>");
+        EXPECTED.put("list", "List<T>");
+        EXPECTED.put("grid", "int[][]");
+        EXPECTED.put("numbers", "List<? extends Number>[]");
+        EXPECTED.put("sinks", "List<? super Integer>");
+        EXPECTED.put("any", "List<?>");
+        EXPECTED.put("entry", "Entry<String, T>");
+        EXPECTED.put("inner", "A<T>.Inner");
+        EXPECTED.put("value", "T");
+    }
+
+    private static final String FIND = "T find(Collection<? super T> from, int limit, String... names) throws E";
+
+    private static TypeElement type;
+
+    @BeforeClass
+    public static void compile() throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        JavaFileObject source = new SimpleJavaFileObject(URI.create("string:///A.java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return SOURCE;
+            }
+        };
+        JavacTask task = (JavacTask) compiler.getTask(null, null, null, null, null, Collections.singletonList(source));
+        task.analyze();
+        type = task.getElements().getTypeElement("A");
+    }
+
+    @Test
+    public void testTypes() {
+        ShortTypePrinter printer = new ShortTypePrinter();
+        // second pass is served from cache, partially (components) or completely
+        for (int pass = 0; pass < 2; pass++) {
+            for (Map.Entry<String, String> field : EXPECTED.entrySet()) {
+                assertEquals(field.getValue(), printer.printType(get(field.getKey()).asType()));
+            }
+        }
+    }
+
+    @Test
+    public void testComponentsCachedFirst() {
+        ShortTypePrinter printer = new ShortTypePrinter();
+        assertEquals("T", printer.printType(get("value").asType()));
+        assertEquals("List<T>", printer.printType(get("list").asType()));
+        assertEquals("Map<String, List<T>>", printer.printType(get("map").asType()));
+        assertEquals("Map<String, List<T>>", printer.printType(get("map").asType()));
+    }
+
+    @Test
+    public void testUncached() {
+        for (Map.Entry<String, String> field : EXPECTED.entrySet()) {
+            assertEquals(field.getValue(), ShortTypePrinter.print(get(field.getKey()).asType()));
+        }
+    }
+
+    @Test
+    public void testMethod() {
+        Symbol.MethodSymbol find = (Symbol.MethodSymbol) get("find");
+        ShortTypePrinter printer = new ShortTypePrinter();
+        assertEquals(FIND, printer.printMethod(find));
+        assertEquals(FIND, printer.printMethod(find));
+        assertEquals("find(Collection<? super T> from, int limit, String... names) throws E",
+                ShortTypePrinter.methodSignature(find));
+    }
+
+    private static Element get(String name) {
+        for (Element element : type.getEnclosedElements()) {
+            if (element.getSimpleName().contentEquals(name)) {
+                return element;
+            }
+        }
+        throw new AssertionError(name);
+    }
+}
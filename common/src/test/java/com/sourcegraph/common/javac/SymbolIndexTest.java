@@ -0,0 +1,81 @@
+package com.sourcegraph.common.javac;
+
+import com.sourcegraph.common.model.JavacConfig;
+import com.sourcegraph.common.util.PriorityExecutorService;
+import com.sourcegraph.common.util.TaskPriority;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class SymbolIndexTest {
+
+    private Path root;
+
+    /**
+     * Runs tasks right away, so that build may complete before index() returns
+     */
+    private PriorityExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("index");
+        executor = new PriorityExecutorService(1) {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdown();
+        FileUtils.deleteDirectory(root.toFile());
+    }
+
+    @Test
+    public void testBuildFailedWhileStarting() throws Exception {
+        // no files to compile, compilation fails right away
+        JavacConfig config = new JavacConfig();
+        config.save(root, root);
+        SymbolIndex index = new SymbolIndex(config, root, null);
+
+        CompletableFuture<SymbolIndex> first = index.index(executor, TaskPriority.BACKGROUND);
+        assertTrue(first.isCompletedExceptionally());
+        assertFalse(index.isBeingIndexed());
+
+        CompletableFuture<SymbolIndex> second = index.index(executor, TaskPriority.INTERACTIVE);
+        assertNotSame(first, second);
+        assertTrue(second.isCompletedExceptionally());
+        assertFalse(index.isBeingIndexed());
+        assertNull(index.cancel());
+    }
+
+    @Test
+    public void testBuildTakenFromShardWhileStarting() throws Exception {
+        ShardStore shardStore = new ShardStore(root.resolve("shards"));
+        Path unit = Files.createDirectory(root.resolve("unit"));
+        JavacConfig config = new JavacConfig();
+        config.files = new HashSet<>();
+        config.sources = Collections.emptyList();
+        config.save(root, unit);
+        Path shard = Files.write(root.resolve("shard"), "def,A,A.java\r\n".getBytes(StandardCharsets.UTF_8));
+        shardStore.put(config.fingerprint(root), ShardStore.contentId(root, config), shard);
+        SymbolIndex index = new SymbolIndex(config, root, shardStore);
+
+        assertSame(index, index.index(executor, TaskPriority.BACKGROUND).getNow(null));
+        assertFalse(index.isBeingIndexed());
+        assertTrue(index.isIndexed());
+        assertSame(index, index.index(executor, TaskPriority.BACKGROUND).getNow(null));
+    }
+}
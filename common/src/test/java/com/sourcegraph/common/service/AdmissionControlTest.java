@@ -0,0 +1,56 @@
+package com.sourcegraph.common.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class AdmissionControlTest {
+
+    private AdmissionControl admissionControl;
+
+    @Before
+    public void setUp() {
+        admissionControl = new AdmissionControl();
+        ReflectionTestUtils.setField(admissionControl, "maxActive", 2);
+        ReflectionTestUtils.setField(admissionControl, "maxActivePerRepo", 1);
+        ReflectionTestUtils.setField(admissionControl, "maxPending", 1);
+        ReflectionTestUtils.setField(admissionControl, "retryAfter", 10L);
+    }
+
+    @Test
+    public void testLimits() throws Exception {
+        CompletableFuture<String> a1 = new CompletableFuture<>();
+        CompletableFuture<String> a2 = new CompletableFuture<>();
+        CompletableFuture<String> b1 = new CompletableFuture<>();
+
+        CompletableFuture<String> first = admissionControl.submit("a", () -> a1);
+        boolean[] started = new boolean[1];
+        // same repository, has to wait for the first job
+        CompletableFuture<String> second = admissionControl.submit("a", () -> {
+            started[0] = true;
+            return a2;
+        });
+        assertFalse(started[0]);
+        CompletableFuture<String> third = admissionControl.submit("b", () -> b1);
+
+        try {
+            admissionControl.submit("c", CompletableFuture::new);
+            fail("Queue is full, job should be rejected");
+        } catch (ServiceBusyException e) {
+            assertEquals(10L, e.getRetryAfter());
+        }
+
+        a1.complete("a1");
+        assertEquals("a1", first.get());
+        assertTrue(started[0]);
+
+        a2.complete("a2");
+        b1.complete("b1");
+        assertEquals("a2", second.get());
+        assertEquals("b1", third.get());
+    }
+}
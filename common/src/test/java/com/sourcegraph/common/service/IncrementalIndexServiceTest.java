@@ -0,0 +1,255 @@
+package com.sourcegraph.common.service;
+
+import com.sourcegraph.common.javac.SymbolIndex;
+import com.sourcegraph.common.model.JavacConfig;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+import static org.junit.Assert.*;
+
+public class IncrementalIndexServiceTest {
+
+    private static final String REPO = "example.com/user/repo";
+
+    private File root;
+
+    private Git origin;
+
+    private MirrorService mirrorService;
+
+    private IncrementalIndexService incrementalIndexService;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("incremental").toFile();
+        origin = Git.init().setDirectory(new File(root, "origin/" + REPO)).call();
+        mirrorService = new MirrorService();
+        ReflectionTestUtils.setField(mirrorService, "mirror", new File(root, "mirror").getAbsolutePath());
+        ReflectionTestUtils.setField(mirrorService, "urlPattern", new File(root, "origin").toURI() + "%s");
+        incrementalIndexService = new IncrementalIndexService();
+        ReflectionTestUtils.setField(incrementalIndexService, "mirrorService", mirrorService);
+        ReflectionTestUtils.setField(incrementalIndexService, "enabled", true);
+        ReflectionTestUtils.setField(incrementalIndexService, "depth", 10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        origin.close();
+        FileUtils.deleteDirectory(root);
+    }
+
+    @Test
+    public void testUnchangedUnitsAreReused() throws Exception {
+        commit("a/A.java", "class A {}");
+        commit("b/B.java", "class B extends A {}");
+        RevCommit first = commit("c/C.java", "class C {}");
+        File ancestor = configure(first, "a", "b", "c");
+        index(ancestor, "a", "b", "c");
+
+        RevCommit second = commit("c/C.java", "class C { int c; }");
+        File workspace = configure(second, "a", "b", "c");
+        incrementalIndexService.seed(REPO, second.name(), workspace);
+
+        assertEquals("a", readIndex(workspace, "a"));
+        assertEquals("b", readIndex(workspace, "b"));
+        // modified unit is built from scratch, nothing is inherited from ancestor's index
+        assertNull(readIndex(workspace, "c"));
+        assertNoPartialIndexes(workspace, "a", "b", "c");
+    }
+
+    @Test
+    public void testDependentUnitsAreRebuilt() throws Exception {
+        commit("a/A.java", "class A {}");
+        commit("b/B.java", "class B extends A {}");
+        RevCommit first = commit("c/C.java", "class C {}");
+        File ancestor = configure(first, "a", "b", "c");
+        index(ancestor, "a", "b", "c");
+
+        RevCommit second = commit("a/A.java", "class A { int a; }");
+        File workspace = configure(second, "a", "b", "c");
+        incrementalIndexService.seed(REPO, second.name(), workspace);
+
+        assertNull(readIndex(workspace, "a"));
+        // sees classes of modified unit through class path
+        assertNull(readIndex(workspace, "b"));
+        assertEquals("c", readIndex(workspace, "c"));
+        assertNoPartialIndexes(workspace, "a", "b", "c");
+    }
+
+    @Test
+    public void testNewAndUnindexedUnitsAreBuiltFromScratch() throws Exception {
+        commit("a/A.java", "class A {}");
+        RevCommit first = commit("c/C.java", "class C {}");
+        File ancestor = configure(first, "a", "c");
+        index(ancestor, "a");
+
+        RevCommit second = commit("d/D.java", "class D {}");
+        File workspace = configure(second, "a", "c", "d");
+        incrementalIndexService.seed(REPO, second.name(), workspace);
+
+        assertEquals("a", readIndex(workspace, "a"));
+        assertNull(readIndex(workspace, "c"));
+        assertNull(readIndex(workspace, "d"));
+    }
+
+    @Test
+    public void testSeededAncestor() throws Exception {
+        commit("a/A.java", "class A {}");
+        RevCommit first = commit("c/C.java", "class C {}");
+        File ancestor = configure(first, "a", "c");
+        index(ancestor, "a", "c");
+
+        RevCommit second = commit("c/C.java", "class C { int c; }");
+        File intermediate = configure(second, "a", "c");
+        incrementalIndexService.seed(REPO, second.name(), intermediate);
+        index(intermediate, "c");
+
+        RevCommit third = commit("a/A.java", "class A { int a; }");
+        File workspace = configure(third, "a", "c");
+        incrementalIndexService.seed(REPO, third.name(), workspace);
+
+        // nearest indexed ancestor is used, its own indexes are either reused whole or rebuilt
+        assertNull(readIndex(workspace, "a"));
+        assertEquals("c", readIndex(workspace, "c"));
+        assertNoPartialIndexes(workspace, "a", "c");
+    }
+
+    @Test
+    public void testChangedConfiguration() throws Exception {
+        commit("a/A.java", "class A {}");
+        RevCommit first = commit("c/C.java", "class C {}");
+        File ancestor = configure(first, "a", "c");
+        index(ancestor, "a", "c");
+
+        RevCommit second = commit("README", "readme");
+        File workspace = configure(second, "a", "c");
+        JavacConfig config = JavacConfig.read(workspace.toPath().resolve("c"));
+        config.classPath = Collections.singletonList("lib/dependency.jar");
+        config.save(workspace.toPath(), workspace.toPath().resolve("c"));
+        incrementalIndexService.seed(REPO, second.name(), workspace);
+
+        assertEquals("a", readIndex(workspace, "a"));
+        assertNull(readIndex(workspace, "c"));
+    }
+
+    @Test
+    public void testChangedClassPath() throws Exception {
+        commit("a/A.java", "class A {}");
+        commit("c/C.java", "class C {}");
+        RevCommit first = commit("lib/dependency.jar", "1");
+        File ancestor = configure(first, "a", "c");
+        addClassPath(ancestor, "c", "lib/dependency.jar");
+        index(ancestor, "a", "c");
+
+        RevCommit second = commit("lib/dependency.jar", "2");
+        File workspace = configure(second, "a", "c");
+        addClassPath(workspace, "c", "lib/dependency.jar");
+        incrementalIndexService.seed(REPO, second.name(), workspace);
+
+        assertEquals("a", readIndex(workspace, "a"));
+        // jar checked into repository was updated, configuration stays the same
+        assertNull(readIndex(workspace, "c"));
+    }
+
+    @Test
+    public void testChangedSourcePath() throws Exception {
+        commit("a/A.java", "class A {}");
+        RevCommit first = commit("c/C.java", "class C {}");
+        File ancestor = configure(first, "a", "c");
+        index(ancestor, "a", "c");
+
+        RevCommit second = commit("c/util/Util.java", "class Util {}");
+        File workspace = configure(second, "a", "c");
+        incrementalIndexService.seed(REPO, second.name(), workspace);
+
+        assertEquals("a", readIndex(workspace, "a"));
+        // new file is not compiled by unit but resolved through its source path
+        assertNull(readIndex(workspace, "c"));
+    }
+
+    @Test
+    public void testNoAncestor() throws Exception {
+        RevCommit first = commit("a/A.java", "class A {}");
+        File workspace = configure(first, "a");
+        incrementalIndexService.seed(REPO, first.name(), workspace);
+        assertNull(readIndex(workspace, "a"));
+    }
+
+    private RevCommit commit(String file, String content) throws Exception {
+        FileUtils.writeStringToFile(new File(origin.getRepository().getWorkTree(), file),
+                content,
+                StandardCharsets.UTF_8);
+        origin.add().addFilepattern(file).call();
+        return origin.commit().setMessage(file).call();
+    }
+
+    /**
+     * Checks out commit and configures each of the given top-level directories as unit, "b" depends on "a"
+     */
+    private File configure(RevCommit commit, String... units) throws Exception {
+        File workspace = new File(root, "workspaces/" + commit.name() + "/workspace");
+        mirrorService.checkout(REPO, commit.name(), workspace);
+        Path path = workspace.toPath();
+        Collection<Path> configFiles = new LinkedList<>();
+        for (String unit : units) {
+            JavacConfig config = new JavacConfig();
+            config.files = new HashSet<>(Collections.singletonList(
+                    unit + '/' + unit.toUpperCase() + ".java"));
+            config.sources = Collections.singletonList(unit);
+            config.outputDirectory = "build/" + unit;
+            if (unit.equals("b")) {
+                config.classPath = Collections.singletonList("build/a");
+            }
+            config.save(path, path.resolve(unit));
+            configFiles.add(config.getFile());
+        }
+        JavacConfig.writeManifest(path, configFiles);
+        return workspace;
+    }
+
+    private static void addClassPath(File workspace, String unit, String classPath) throws Exception {
+        Path path = workspace.toPath();
+        JavacConfig config = JavacConfig.read(path.resolve(unit));
+        config.classPath = Collections.singletonList(classPath);
+        config.save(path, path.resolve(unit));
+    }
+
+    private static void index(File workspace, String... units) throws Exception {
+        for (String unit : units) {
+            FileUtils.writeStringToFile(new File(workspace, unit + '/' + SymbolIndex.INDEX_FILE_NAME),
+                    unit,
+                    StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String readIndex(File workspace, String unit) throws Exception {
+        File file = new File(workspace, unit + '/' + SymbolIndex.INDEX_FILE_NAME);
+        return file.isFile() ? FileUtils.readFileToString(file, StandardCharsets.UTF_8) : null;
+    }
+
+    private static void assertNoPartialIndexes(File workspace, String... units) {
+        for (String unit : units) {
+            String[] names = new File(workspace, unit).list();
+            assertNotNull(names);
+            for (String name : names) {
+                assertTrue(name, name.equals(JavacConfig.CONFIG_FILE_NAME) ||
+                        name.equals(SymbolIndex.INDEX_FILE_NAME) ||
+                        name.endsWith(".java"));
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.sourcegraph.common.service;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class MirrorServiceTest {
+
+    private static final String REPO = "example.com/user/repo";
+
+    private File root;
+
+    private Git origin;
+
+    private MirrorService mirrorService;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("mirror").toFile();
+        origin = Git.init().setDirectory(new File(root, "origin/" + REPO)).call();
+        mirrorService = new MirrorService();
+        ReflectionTestUtils.setField(mirrorService, "mirror", new File(root, "mirror").getAbsolutePath());
+        ReflectionTestUtils.setField(mirrorService, "urlPattern", new File(root, "origin").toURI() + "%s");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        origin.close();
+        FileUtils.deleteDirectory(root);
+    }
+
+    @Test
+    public void testCheckout() throws Exception {
+        RevCommit first = commit("A.java", "class A {}");
+        RevCommit second = commit("A.java", "class A { int a; }");
+
+        File workspace = new File(root, "first");
+        mirrorService.checkout(REPO, first.name(), workspace);
+        assertEquals("class A {}", read(workspace, "A.java"));
+
+        workspace = new File(root, "second");
+        mirrorService.checkout(REPO, second.name(), workspace);
+        assertEquals("class A { int a; }", read(workspace, "A.java"));
+        try (Repository repository = new FileRepositoryBuilder().
+                setGitDir(new File(workspace, ".git")).
+                build()) {
+            assertEquals(second.getId(), repository.resolve("HEAD"));
+            assertTrue(repository.getRepositoryState().canCheckout());
+        }
+        // objects are borrowed from mirror
+        assertArrayEquals(new String[0], new File(workspace, ".git/objects/pack").list());
+    }
+
+    @Test
+    public void testIncrementalFetch() throws Exception {
+        RevCommit first = commit("A.java", "class A {}");
+        mirrorService.checkout(REPO, first.name(), new File(root, "first"));
+
+        RevCommit second = commit("B.java", "class B {}");
+        assertFalse(hasObject(second));
+        mirrorService.checkout(REPO, second.name(), new File(root, "second"));
+        assertTrue(hasObject(second));
+        assertTrue(new File(root, "second/B.java").isFile());
+
+        // known commit is checked out without fetch
+        origin.getRepository().close();
+        FileUtils.deleteDirectory(new File(root, "origin"));
+        mirrorService.checkout(REPO, first.name(), new File(root, "again"));
+        assertEquals("class A {}", read(new File(root, "again"), "A.java"));
+    }
+
+    @Test
+    public void testSparseCheckout() throws Exception {
+        ReflectionTestUtils.setField(mirrorService, "sparse", true);
+        commit("pom.xml", "<project/>");
+        commit("src/main/java/A.java", "class A {}");
+        commit("src/main/resources/logo.png", "PNG");
+        commit("buildSrc/src/main/groovy/Plugin.groovy", "class Plugin {}");
+        RevCommit last = commit("lib/dependency.jar", "JAR");
+
+        File workspace = new File(root, "sparse");
+        mirrorService.checkout(REPO, last.name(), workspace);
+        assertTrue(new File(workspace, "pom.xml").isFile());
+        assertEquals("class A {}", read(workspace, "src/main/java/A.java"));
+        assertTrue(new File(workspace, "buildSrc/src/main/groovy/Plugin.groovy").isFile());
+        assertTrue(new File(workspace, "lib/dependency.jar").isFile());
+        assertFalse(new File(workspace, "src/main/resources").exists());
+        try (Repository repository = new FileRepositoryBuilder().
+                setGitDir(new File(workspace, ".git")).
+                build()) {
+            assertEquals(last.getId(), repository.resolve("HEAD"));
+            assertEquals(4, repository.readDirCache().getEntryCount());
+        }
+    }
+
+    @Test
+    public void testFindAncestorAndDiff() throws Exception {
+        RevCommit first = commit("A.java", "class A {}");
+        RevCommit second = commit("B.java", "class B {}");
+        RevCommit third = commit("A.java", "class A { int a; }");
+        mirrorService.checkout(REPO, third.name(), new File(root, "third"));
+
+        assertEquals(second.name(), mirrorService.findAncestor(REPO,
+                third.name(),
+                Arrays.asList(first.name(), second.name(), third.name()),
+                10));
+        assertEquals(first.name(), mirrorService.findAncestor(REPO,
+                third.name(),
+                Collections.singletonList(first.name()),
+                10));
+        assertNull(mirrorService.findAncestor(REPO, third.name(), Collections.singletonList(first.name()), 1));
+        assertNull(mirrorService.findAncestor(REPO, first.name(), Collections.singletonList(third.name()), 10));
+
+        assertEquals(new HashSet<>(Arrays.asList("A.java", "B.java")),
+                mirrorService.diff(REPO, first.name(), third.name()));
+        assertEquals(Collections.singleton("A.java"), mirrorService.diff(REPO, second.name(), third.name()));
+    }
+
+    @Test
+    public void testUnknownCommit() throws Exception {
+        commit("A.java", "class A {}");
+        File workspace = new File(root, "unknown");
+        try {
+            mirrorService.checkout(REPO, ObjectId.zeroId().name(), workspace);
+            fail();
+        } catch (IOException e) {
+            assertFalse(workspace.exists());
+        }
+    }
+
+    private RevCommit commit(String file, String content) throws Exception {
+        FileUtils.writeStringToFile(new File(origin.getRepository().getWorkTree(), file),
+                content,
+                StandardCharsets.UTF_8);
+        origin.add().addFilepattern(file).call();
+        return origin.commit().setMessage(file).call();
+    }
+
+    private boolean hasObject(RevCommit commit) throws Exception {
+        try (Repository repository = new FileRepositoryBuilder().
+                setGitDir(new File(root, "mirror/" + REPO + ".git")).
+                setBare().
+                build()) {
+            return repository.hasObject(commit);
+        }
+    }
+
+    private static String read(File dir, String file) throws IOException {
+        return FileUtils.readFileToString(new File(dir, file), StandardCharsets.UTF_8);
+    }
+}
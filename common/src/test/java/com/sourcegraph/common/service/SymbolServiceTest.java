@@ -6,6 +6,7 @@ import com.sourcegraph.common.configuration.TaskExecutorConfiguration;
 import com.sourcegraph.common.javac.Workspace;
 import com.sourcegraph.common.javac.WorkspaceService;
 import com.sourcegraph.common.model.*;
+import com.sourcegraph.common.util.TaskPriority;
 import org.apache.commons.lang3.StringUtils;
 import org.junit.After;
 import org.junit.Before;
@@ -53,7 +54,7 @@ public class SymbolServiceTest {
     public void tearDown() throws Exception {
         // ensure that no threads are left
         if (workspace != null) {
-            workspace.computeIndexes(taskExecutorConfiguration.taskExecutor());
+            workspace.computeIndexes(taskExecutorConfiguration.indexExecutor(), TaskPriority.INTERACTIVE).get();
             workspace = null;
         }
     }
@@ -83,7 +84,7 @@ public class SymbolServiceTest {
                 "e6e1dca05be97bba8cd9ea5b828191c5c6d2b9db").get();
         workspace = workspaceService.getWorkspace(repoRoot.toPath());
         // wait for indexing completion
-        workspace.computeIndexes(taskExecutorConfiguration.taskExecutor());
+        workspace.computeIndexes(taskExecutorConfiguration.indexExecutor(), TaskPriority.INTERACTIVE).get();
 
         Position position = new Position();
         position.setRepo("github.com/sgtest/java-maven-sample");
@@ -131,7 +132,7 @@ public class SymbolServiceTest {
                 "e6e1dca05be97bba8cd9ea5b828191c5c6d2b9db").get();
         workspace = workspaceService.getWorkspace(repoRoot.toPath());
         // wait for indexing completion
-        workspace.computeIndexes(taskExecutorConfiguration.taskExecutor());
+        workspace.computeIndexes(taskExecutorConfiguration.indexExecutor(), TaskPriority.INTERACTIVE).get();
 
         Position position = new Position();
         position.setRepo("github.com/sgtest/java-maven-sample");
@@ -164,6 +165,7 @@ public class SymbolServiceTest {
         position.setFile("src/main/java/mypkg/FooClass.java");
         position.setLine(14);
         position.setCharacter(19);
+        workspace.computeIndexes(taskExecutorConfiguration.indexExecutor(), TaskPriority.INTERACTIVE).get();
         RefLocations refs = symbolService.localRefs(repoRoot.toPath(), position);
         assertNotNull(refs);
         Collection<Range> expected = new ObjectMapper().
@@ -184,6 +186,7 @@ public class SymbolServiceTest {
         RepoRev repoRev = new RepoRev();
         repoRev.setRepo("github.com/sgtest/java-maven-sample");
         repoRev.setCommit("e6e1dca05be97bba8cd9ea5b828191c5c6d2b9db");
+        workspace.computeIndexes(taskExecutorConfiguration.indexExecutor(), TaskPriority.BACKGROUND).get();
         ExternalRefs refs = symbolService.externalRefs(repoRoot.toPath());
         assertNotNull(refs);
         Collection<DefSpec> expected = new ObjectMapper().
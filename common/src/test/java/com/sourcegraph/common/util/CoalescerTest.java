@@ -0,0 +1,85 @@
+package com.sourcegraph.common.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CoalescerTest {
+
+    private Coalescer<String> coalescer;
+
+    private AtomicInteger computations;
+
+    private CompletableFuture<String> computation;
+
+    @Before
+    public void setUp() throws Exception {
+        coalescer = new Coalescer<>();
+        computations = new AtomicInteger();
+        computation = new CompletableFuture<>();
+    }
+
+    private CompletableFuture<String> compute() {
+        computations.incrementAndGet();
+        return computation;
+    }
+
+    @Test
+    public void testIdenticalRequestsShareComputation() throws Exception {
+        CompletableFuture<String> first = coalescer.submit("hover", this::compute);
+        CompletableFuture<String> second = coalescer.submit("hover", this::compute);
+        assertEquals(1, computations.get());
+        assertFalse(first.isDone());
+        computation.complete("result");
+        assertEquals("result", first.get());
+        assertEquals("result", second.get());
+        assertEquals(0, coalescer.size());
+    }
+
+    @Test
+    public void testDifferentKeysAreNotCoalesced() throws Exception {
+        coalescer.submit("hover", this::compute);
+        coalescer.submit("definition", this::compute);
+        assertEquals(2, computations.get());
+        assertEquals(2, coalescer.size());
+    }
+
+    @Test
+    public void testCompletedComputationIsNotReused() throws Exception {
+        computation.complete("result");
+        assertEquals("result", coalescer.submit("hover", this::compute).get());
+        assertEquals("result", coalescer.submit("hover", this::compute).get());
+        assertEquals(2, computations.get());
+    }
+
+    @Test
+    public void testErrorIsShared() throws Exception {
+        CompletableFuture<String> first = coalescer.submit("hover", this::compute);
+        CompletableFuture<String> second = coalescer.submit("hover", this::compute);
+        IllegalStateException error = new IllegalStateException();
+        computation.completeExceptionally(error);
+        for (CompletableFuture<String> future : new CompletableFuture[]{first, second}) {
+            try {
+                future.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertSame(error, e.getCause());
+            }
+        }
+        assertEquals(0, coalescer.size());
+    }
+
+    @Test
+    public void testCallerCannotCompleteSharedComputation() throws Exception {
+        CompletableFuture<String> first = coalescer.submit("hover", this::compute);
+        CompletableFuture<String> second = coalescer.submit("hover", this::compute);
+        first.complete("forged");
+        computation.complete("result");
+        assertEquals("result", second.get());
+    }
+}
@@ -0,0 +1,48 @@
+package com.sourcegraph.common.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LruCacheTest {
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() throws Exception {
+        LruCache<String, String> cache = new LruCache<>(2);
+        cache.put("a", "1", cache.getGeneration());
+        cache.put("b", "2", cache.getGeneration());
+        assertEquals("1", cache.get("a"));
+        cache.put("c", "3", cache.getGeneration());
+        assertEquals(2, cache.size());
+        assertNull(cache.get("b"));
+        assertEquals("1", cache.get("a"));
+        assertEquals("3", cache.get("c"));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        LruCache<String, String> cache = new LruCache<>(10);
+        cache.put("repo1/a", "1", cache.getGeneration());
+        cache.put("repo2/a", "2", cache.getGeneration());
+        cache.invalidate(key -> key.startsWith("repo1/"));
+        assertNull(cache.get("repo1/a"));
+        assertEquals("2", cache.get("repo2/a"));
+    }
+
+    @Test
+    public void testValueComputedBeforeInvalidationIsRejected() throws Exception {
+        LruCache<String, String> cache = new LruCache<>(10);
+        long generation = cache.getGeneration();
+        cache.invalidate(key -> true);
+        assertFalse(cache.put("a", "stale", generation));
+        assertNull(cache.get("a"));
+        assertTrue(cache.put("a", "fresh", cache.getGeneration()));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        LruCache<String, String> cache = new LruCache<>(0);
+        cache.put("a", "1", cache.getGeneration());
+        assertNull(cache.get("a"));
+    }
+}
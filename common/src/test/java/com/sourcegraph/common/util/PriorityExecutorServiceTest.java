@@ -0,0 +1,68 @@
+package com.sourcegraph.common.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class PriorityExecutorServiceTest {
+
+    private PriorityExecutorService executor;
+
+    private CountDownLatch blocker;
+
+    private List<String> order;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = new PriorityExecutorService(1);
+        blocker = new CountDownLatch(1);
+        order = new CopyOnWriteArrayList<>();
+        // occupies the only thread, so that next tasks are queued
+        executor.submit(() -> {
+            blocker.await();
+            return null;
+        }, TaskPriority.BACKGROUND);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testInteractiveFirst() throws Exception {
+        submit("b1", TaskPriority.BACKGROUND);
+        submit("b2", TaskPriority.BACKGROUND);
+        submit("i1", TaskPriority.INTERACTIVE);
+        Future<?> last = submit("i2", TaskPriority.INTERACTIVE);
+        Future<?> b3 = executor.submit(() -> order.add("b3"));
+        blocker.countDown();
+        b3.get(10, TimeUnit.SECONDS);
+        assertTrue(last.isDone());
+        assertEquals(Arrays.asList("i1", "i2", "b1", "b2", "b3"), order);
+    }
+
+    @Test
+    public void testPromote() throws Exception {
+        submit("b1", TaskPriority.BACKGROUND);
+        Future<?> b2 = submit("b2", TaskPriority.BACKGROUND);
+        Future<?> i1 = submit("i1", TaskPriority.INTERACTIVE);
+        executor.promote(b2, TaskPriority.INTERACTIVE);
+        blocker.countDown();
+        b2.get(10, TimeUnit.SECONDS);
+        i1.get(10, TimeUnit.SECONDS);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("b2", "i1", "b1"), order);
+    }
+
+    private Future<?> submit(String name, TaskPriority priority) {
+        return executor.submit(() -> order.add(name), priority);
+    }
+}
@@ -1,22 +1,44 @@
 package com.sourcegraph.langp;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sourcegraph.common.configuration.TaskExecutorConfiguration;
 import com.sourcegraph.common.model.Error;
 import com.sourcegraph.common.model.*;
 import com.sourcegraph.common.service.*;
+import com.sourcegraph.common.util.Coalescer;
+import com.sourcegraph.common.util.LruCache;
+import com.sourcegraph.common.util.PathUtil;
+import com.sourcegraph.common.util.TaskPriority;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 @RestController
 //@SuppressWarnings("unused")
@@ -30,45 +52,160 @@ public class LanguageProcessorController {
     @Autowired
     private SymbolService symbolService;
 
+    @Autowired
+    private TaskExecutorConfiguration taskExecutorConfiguration;
+
+    /**
+     * Maximum time (in milliseconds) to wait for query result, 0 means no limit
+     */
+    @Value("${query.timeout:0}")
+    private long queryTimeout;
+
+    /**
+     * Maximum time (in milliseconds) to keep status event stream open, 0 means no limit
+     */
+    @Value("${status.events.timeout:0}")
+    private long statusEventsTimeout;
+
+    /**
+     * Identical queries in flight share single computation
+     */
+    private Coalescer<List<Object>> coalescer = new Coalescer<>();
+
+    /**
+     * Maximum number of query results to keep in cache, 0 disables cache
+     */
+    @Value("${query.cache.size:10000}")
+    private int cacheSize;
+
+    /**
+     * Allow clients and proxies to reuse query results for X seconds
+     */
+    @Value("${query.cache.max.age:86400}")
+    private long cacheMaxAge;
+
+    /**
+     * Query key -> result, results of repo@commit are immutable until workspace is prepared again
+     */
+    private LruCache<List<Object>, CachedResult<?>> resultCache;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private HttpServletRequest request;
+
+    @PostConstruct
+    private void init() {
+        resultCache = new LruCache<>(cacheSize);
+    }
+
     @PostMapping(value = "/prepare")
-    public void prepare(@Valid @RequestBody RepoRev repoRev, HttpServletResponse response)
-            throws WorkspaceException, InterruptedException, ExecutionException {
+    public void prepare(@Valid @RequestBody RepoRev repoRev,
+                        @RequestParam(value = "profile", required = false) String profile,
+                        HttpServletResponse response)
+            throws WorkspaceException, InterruptedException, ExecutionException, ServiceBusyException {
         LOGGER.info("Prepare {}@{}",
                 repoRev.getRepo(),
                 repoRev.getCommit());
-        repositoryService.getRepository(repoRev.getRepo(), repoRev.getCommit(), true);
+        IndexProfile indexProfile = profile == null ? null : IndexProfile.fromString(profile);
+        repositoryService.getRepository(repoRev.getRepo(), repoRev.getCommit(), true, indexProfile);
+        resultCache.invalidate(key -> repoRev.getRepo().equals(key.get(1)) && repoRev.getCommit().equals(key.get(2)));
     }
 
-    @PostMapping(value = "/definition")
-    public Range definition(@Valid @RequestBody Position pos)
-            throws WorkspaceBeingPreparedException,
-            WorkspaceException,
-            SymbolException,
-            NoDefinitionFoundException {
-        Path root = repositoryService.getWorkspace(pos.getRepo(), pos.getCommit()).toPath();
-        Range ret = symbolService.definition(root, pos).getRange();
-        ret.setRepo(pos.getRepo());
-        ret.setCommit(pos.getCommit());
+    @PostMapping(value = "/status")
+    public WorkspaceStatus status(@Valid @RequestBody RepoRev repoRev) {
+        return repositoryService.getStatus(repoRev.getRepo(), repoRev.getCommit());
+    }
+
+    /**
+     * Streams workspace status as server-sent events until workspace is either ready or failed
+     */
+    @GetMapping(value = "/status/events")
+    public SseEmitter statusEvents(@RequestParam("repo") String repo,
+                                   @RequestParam("commit") String commit) {
+        SseEmitter ret = new SseEmitter(statusEventsTimeout);
+        repositoryService.subscribe(repo, commit, status -> {
+            try {
+                ret.send(SseEmitter.event().name("status").data(status, MediaType.APPLICATION_JSON));
+            } catch (IOException | IllegalStateException ex) {
+                // client went away or emitter timed out
+                return false;
+            }
+            if (status.isDone()) {
+                ret.complete();
+                return false;
+            }
+            return true;
+        });
         return ret;
     }
 
+    @PostMapping(value = "/definition")
+    public DeferredResult<ResponseEntity<Range>> definition(@Valid @RequestBody Position pos) {
+        return query(key("definition", pos), true, pos.getRepo(), pos.getCommit(), null, root -> {
+            Range ret = symbolService.definition(root, pos).getRange();
+            ret.setRepo(pos.getRepo());
+            ret.setCommit(pos.getCommit());
+            return ret;
+        });
+    }
+
     @PostMapping(value = "/hover")
-    public Hover hover(@Valid @RequestBody Position pos)
-            throws WorkspaceBeingPreparedException,
-            WorkspaceException,
-            SymbolException,
-            NoDefinitionFoundException {
-        Path root = repositoryService.getWorkspace(pos.getRepo(), pos.getCommit()).toPath();
-        return symbolService.hover(root, pos);
+    public DeferredResult<ResponseEntity<Hover>> hover(@Valid @RequestBody Position pos) {
+        return query(key("hover", pos), true, pos.getRepo(), pos.getCommit(), null,
+                root -> symbolService.hover(root, pos));
     }
 
     @PostMapping(value = "/local-refs")
-    public RefLocations localRefs(@Valid @RequestBody Position pos)
-            throws WorkspaceBeingPreparedException,
-            WorkspaceException,
-            SymbolException,
-            NoDefinitionFoundException {
-        Path root = repositoryService.getWorkspace(pos.getRepo(), pos.getCommit()).toPath();
+    public DeferredResult<ResponseEntity<RefLocations>> localRefs(@Valid @RequestBody Position pos) {
+        return query(key("local-refs", pos), true, pos.getRepo(), pos.getCommit(), TaskPriority.INTERACTIVE,
+                root -> localRefs(root, pos));
+    }
+
+    @PostMapping(value = "/external-refs")
+    public DeferredResult<ResponseEntity<ExternalRefs>> externalRefs(@Valid @RequestBody RepoRev repoRev) {
+        return query(key("external-refs", repoRev), false, repoRev.getRepo(), repoRev.getCommit(),
+                TaskPriority.BACKGROUND,
+                symbolService::externalRefs);
+    }
+
+    @PostMapping(value = "/exported-symbols")
+    public DeferredResult<ResponseEntity<ExportedSymbols>> exportedSymbols(@Valid @RequestBody RepoRev repoRev) {
+        return query(key("exported-symbols", repoRev), false, repoRev.getRepo(), repoRev.getCommit(),
+                TaskPriority.BACKGROUND,
+                symbolService::exportedSymbols);
+    }
+
+    @PostMapping(value = "/defspec-to-position")
+    public DeferredResult<ResponseEntity<Position>> defSpecToPosition(@Valid @RequestBody DefSpec defSpec) {
+        return query(key("defspec-to-position", defSpec), true, defSpec.getRepo(), defSpec.getCommit(),
+                TaskPriority.INTERACTIVE,
+                root -> symbolService.defSpecToPosition(root, defSpec));
+    }
+
+    @PostMapping(value = "/position-to-defspec")
+    public DeferredResult<ResponseEntity<DefSpec>> positionToDefSpec(@Valid @RequestBody Position pos) {
+        return query(key("position-to-defspec", pos), true, pos.getRepo(), pos.getCommit(), null,
+                root -> symbolService.positionToDefSpec(root, pos));
+    }
+
+    @PostMapping(value = "/defspec-refs")
+    public DeferredResult<ResponseEntity<RefLocations>> defSpecRefs(@Valid @RequestBody DefSpec defSpec) {
+        return query(key("defspec-refs", defSpec), true, defSpec.getRepo(), defSpec.getCommit(),
+                TaskPriority.INTERACTIVE,
+                root -> localRefs(root, symbolService.defSpecToPosition(root, defSpec)));
+    }
+
+    /**
+     * @param root workspace root
+     * @param pos  symbol position
+     * @return local references to symbol at the given position, marked with position's repository and revision
+     */
+    private RefLocations localRefs(Path root, Position pos)
+            throws SymbolException,
+            NoDefinitionFoundException,
+            WorkspaceBeingPreparedException {
         RefLocations ret = symbolService.localRefs(root, pos);
         Collection<Range> refs = new LinkedList<>();
         for (Range range : ret.getRefs()) {
@@ -81,49 +218,177 @@ public class LanguageProcessorController {
         return ret;
     }
 
-    @PostMapping(value = "/external-refs")
-    public ExternalRefs externalRefs(@Valid @RequestBody RepoRev repoRev)
-            throws WorkspaceException, WorkspaceBeingPreparedException, SymbolException {
-        Path root = repositoryService.getWorkspace(repoRev.getRepo(), repoRev.getCommit()).toPath();
-        return symbolService.externalRefs(root);
+    /**
+     * @param endpoint endpoint name
+     * @param pos      position
+     * @return normalized key of position query
+     */
+    private static List<Object> key(String endpoint, Position pos) {
+        return Arrays.asList(endpoint,
+                pos.getRepo(),
+                pos.getCommit(),
+                PathUtil.normalize(pos.getFile()),
+                pos.getLine(),
+                pos.getCharacter());
     }
 
-    @PostMapping(value = "/exported-symbols")
-    public ExportedSymbols exportedSymbols(@Valid @RequestBody RepoRev repoRev)
-            throws WorkspaceException, WorkspaceBeingPreparedException, SymbolException {
-        Path root = repositoryService.getWorkspace(repoRev.getRepo(), repoRev.getCommit()).toPath();
-        return symbolService.exportedSymbols(root);
+    /**
+     * @param endpoint endpoint name
+     * @param defSpec  def spec
+     * @return normalized key of def spec query
+     */
+    private static List<Object> key(String endpoint, DefSpec defSpec) {
+        return Arrays.asList(endpoint,
+                defSpec.getRepo(),
+                defSpec.getCommit(),
+                defSpec.getUnitType(),
+                defSpec.getUnit(),
+                defSpec.getPath());
     }
 
-    @PostMapping(value = "/defspec-to-position")
-    public Position defSpecToPosition(@Valid @RequestBody DefSpec defSpec)
-            throws WorkspaceBeingPreparedException,
-            WorkspaceException,
-            SymbolException,
-            NoDefinitionFoundException {
-        Path root = repositoryService.getWorkspace(defSpec.getRepo(), defSpec.getCommit()).toPath();
-        return symbolService.defSpecToPosition(root, defSpec);
+    /**
+     * @param endpoint endpoint name
+     * @param repoRev  repository and revision
+     * @return normalized key of repository-wide query
+     */
+    private static List<Object> key(String endpoint, RepoRev repoRev) {
+        return Arrays.asList(endpoint, repoRev.getRepo(), repoRev.getCommit());
     }
 
-    @PostMapping(value = "/position-to-defspec")
-    public DefSpec positionToDefSpec(@Valid @RequestBody Position pos)
-            throws WorkspaceBeingPreparedException,
-            WorkspaceException,
-            SymbolException,
-            NoDefinitionFoundException {
-        Path root = repositoryService.getWorkspace(pos.getRepo(), pos.getCommit()).toPath();
-        return symbolService.positionToDefSpec(root, pos);
+    /**
+     * Composes workspace readiness, (optional) index readiness and query into a single pipeline, servlet thread is
+     * released while the pipeline is pending. Identical queries in flight share the same pipeline (commits are
+     * immutable, so shared result is never stale). Cacheable results are served from cache and carry strong ETag,
+     * matching If-None-Match results in 304. Query errors are handled by exception handlers below
+     *
+     * @param key       normalized query key
+     * @param cacheable true if query result should be cached, repository-wide results are too large to be kept
+     * @param repo      repository
+     * @param commit   revision
+     * @param priority if set, all workspace indexes are built with the given priority before running query
+     * @param query    query to run when workspace is ready
+     * @return deferred query result
+     */
+    @SuppressWarnings("unchecked")
+    private <T> DeferredResult<ResponseEntity<T>> query(List<Object> key,
+                                                        boolean cacheable,
+                                                        String repo,
+                                                        String commit,
+                                                        TaskPriority priority,
+                                                        Query<T> query) {
+        DeferredResult<ResponseEntity<T>> ret = new DeferredResult<>(queryTimeout);
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        CachedResult<T> cached = cacheable ? (CachedResult<T>) resultCache.get(key) : null;
+        if (cached != null) {
+            ret.setResult(cached.toResponse(ifNoneMatch, cacheMaxAge));
+            return ret;
+        }
+        long generation = resultCache.getGeneration();
+        coalescer.submit(key, () -> pipeline(repo, commit, priority, query).thenApply(body -> {
+            if (!cacheable) {
+                return new CachedResult<>(body, null);
+            }
+            CachedResult<T> result = new CachedResult<>(body, eTag(body));
+            // results computed before workspace was prepared again are not cached
+            resultCache.put(key, result, generation);
+            return result;
+        })).
+                whenComplete((result, ex) -> {
+                    if (ex == null) {
+                        ret.setResult(result.toResponse(ifNoneMatch, cacheMaxAge));
+                    } else {
+                        ret.setErrorResult(ex instanceof CompletionException && ex.getCause() != null ?
+                                ex.getCause() : ex);
+                    }
+                });
+        return ret;
     }
 
-    @PostMapping(value = "/defspec-refs")
-    public RefLocations defSpecRefs(@Valid @RequestBody DefSpec defSpec)
-            throws WorkspaceBeingPreparedException,
-            WorkspaceException,
-            SymbolException,
-            NoDefinitionFoundException {
-        Path root = repositoryService.getWorkspace(defSpec.getRepo(), defSpec.getCommit()).toPath();
-        Position pos = symbolService.defSpecToPosition(root, defSpec);
-        return localRefs(pos);
+    /**
+     * @param repo     repository
+     * @param commit   revision
+     * @param priority if set, all workspace indexes are built with the given priority before running query
+     * @param query    query to run when workspace is ready
+     * @return future query result
+     */
+    private <T> CompletableFuture<T> pipeline(String repo, String commit, TaskPriority priority, Query<T> query) {
+        return repositoryService.getWorkspaceAsync(repo, commit).
+                thenCompose(workspace -> priority == null ?
+                        CompletableFuture.completedFuture(workspace) :
+                        symbolService.computeIndexes(workspace.toPath(), priority).thenApply(ignore -> workspace)).
+                thenApplyAsync(workspace -> {
+                    try {
+                        return query.run(workspace.toPath());
+                    } catch (Exception ex) {
+                        throw new CompletionException(ex);
+                    }
+                }, taskExecutorConfiguration.queryExecutor());
+    }
+
+    /**
+     * @param body response body
+     * @return strong ETag derived from serialized body or null if body can't be serialized
+     */
+    private String eTag(Object body) {
+        try {
+            return '"' + DigestUtils.md5DigestAsHex(objectMapper.writeValueAsBytes(body)) + '"';
+        } catch (JsonProcessingException ex) {
+            LOGGER.warn("Unable to compute ETag", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Query result along with its ETag
+     */
+    private static class CachedResult<T> {
+
+        private T body;
+
+        /**
+         * Strong ETag, null if result is not cacheable
+         */
+        private String eTag;
+
+        CachedResult(T body, String eTag) {
+            this.body = body;
+            this.eTag = eTag;
+        }
+
+        /**
+         * @param ifNoneMatch If-None-Match request header value
+         * @param maxAge      max age (in seconds) clients and proxies may reuse result for
+         * @return 304 if client already has the result, 200 with result otherwise
+         */
+        ResponseEntity<T> toResponse(String ifNoneMatch, long maxAge) {
+            if (eTag == null) {
+                return ResponseEntity.ok(body);
+            }
+            CacheControl cacheControl = CacheControl.maxAge(maxAge, TimeUnit.SECONDS);
+            if (ifNoneMatch != null) {
+                for (String candidate : StringUtils.commaDelimitedListToStringArray(ifNoneMatch)) {
+                    candidate = candidate.trim();
+                    if (candidate.equals("*") || candidate.equals(eTag)) {
+                        return ResponseEntity.status(HttpStatus.NOT_MODIFIED).
+                                eTag(eTag).
+                                cacheControl(cacheControl).
+                                body(null);
+                    }
+                }
+            }
+            return ResponseEntity.ok().
+                    eTag(eTag).
+                    cacheControl(cacheControl).
+                    body(body);
+        }
+    }
+
+    /**
+     * Query to run against prepared workspace
+     */
+    @FunctionalInterface
+    private interface Query<T> {
+        T run(Path root) throws Exception;
     }
 
     @ExceptionHandler({WorkspaceBeingPreparedException.class})
@@ -133,6 +398,16 @@ public class LanguageProcessorController {
         return new ResponseEntity<>(error, HttpStatus.ACCEPTED);
     }
 
+    @ExceptionHandler({ServiceBusyException.class})
+    @ResponseBody
+    ResponseEntity<Error> handleServiceBusyException(HttpServletResponse response, ServiceBusyException ex)
+            throws IOException {
+        Error error = new Error(ex.getMessage());
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfter()));
+        return new ResponseEntity<>(error, headers, HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
     @ExceptionHandler({NoDefinitionFoundException.class})
     @ResponseBody
     ResponseEntity<Error> handleNoDefinitionFoundException(HttpServletResponse response) throws IOException {
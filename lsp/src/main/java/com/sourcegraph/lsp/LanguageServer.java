@@ -5,6 +5,7 @@ import com.sourcegraph.common.model.Range;
 import com.sourcegraph.common.model.RefLocations;
 import com.sourcegraph.common.service.*;
 import com.sourcegraph.common.util.PathUtil;
+import com.sourcegraph.common.util.TaskPriority;
 import io.typefox.lsapi.*;
 import io.typefox.lsapi.impl.*;
 import io.typefox.lsapi.services.TextDocumentService;
@@ -144,8 +145,11 @@ public class LanguageServer implements io.typefox.lsapi.services.LanguageServer
                 RefLocations ret;
                 try {
                     Position pos = getPosition(params);
+                    // references are looked up in all indexes, waiting for them as HTTP query pipeline does
+                    symbolService.computeIndexes(workspace.toPath(), TaskPriority.INTERACTIVE).get();
                     ret = symbolService.localRefs(workspace.toPath(), pos);
-                } catch (SymbolException | NoDefinitionFoundException | URISyntaxException e) {
+                } catch (SymbolException | NoDefinitionFoundException | WorkspaceBeingPreparedException |
+                        URISyntaxException | InterruptedException | ExecutionException e) {
                     throw new RuntimeException(e);
                 }
 